@@ -2,46 +2,55 @@ package com.mxp.mdb.backend.common;
 
 import com.mxp.mdb.common.error.Error;
 
-import java.util.*;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.locks.Lock;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 /**
+ * 引用计数缓存
+ * 命中时只读取 ConcurrentLongObjectMap 并CAS增加引用计数，不装箱，不持有任何锁；
+ * 同一资源正在被其它线程加载时，等待该资源的加载Future完成，而不是休眠轮询。
+ * <p>
+ * 默认模式下资源引用计数归零即被写回并移出缓存；
+ * 常驻模式下引用计数归零的资源继续留在缓存中，缓存满时按 2Q 策略选择未被引用的资源驱逐。
+ *
  * @author mxp
  * @date 2023/4/11 21:48
  */
 public abstract class AbstractCache<T> {
 
     /**
-     * 实际缓存的数据
+     * 实际缓存的数据，包括正在加载的资源
      */
-    private final HashMap<Long, T> cache;
-    /**
-     * 元素的引用个数
-     */
-    private final HashMap<Long, Integer> references;
-    /**
-     * 正在获取某资源的线程
-     */
-    private final Set<Long> getting;
+    private final ConcurrentLongObjectMap<CacheItem<T>> cache;
 
     /**
      * 缓存的最大缓存资源数
      */
     private final int capacity;
 
-    private int count;
+    private final AtomicInteger count;
 
-    private final Lock lock;
+    /**
+     * 常驻模式下的驱逐策略，默认模式下为null
+     */
+    private final TwoQueue<T> policy;
 
     public AbstractCache(int capacity) {
-        this.count = 0;
+        this(capacity, false);
+    }
+
+    /**
+     * @param capacity 最大缓存资源数
+     * @param resident 是否在引用计数归零后继续保留资源，仅在capacity大于0时生效
+     */
+    public AbstractCache(int capacity, boolean resident) {
         this.capacity = capacity;
-        cache = new HashMap<>();
-        references = new HashMap<>();
-        getting = new HashSet<>();
-        lock = new ReentrantLock();
+        this.count = new AtomicInteger(0);
+        this.cache = new ConcurrentLongObjectMap<>();
+        this.policy = resident && capacity > 0 ? new TwoQueue<>(capacity) : null;
     }
 
     /**
@@ -51,96 +60,202 @@ public abstract class AbstractCache<T> {
      */
     public T get(long key) throws Exception {
         while (true) {
-            lock.lock();
-            if (getting.contains(key)) {
-                lock.unlock();
+            CacheItem<T> item = cache.get(key);
+            if (item != null) {
+                if (!item.retain()) {
+                    // 该资源正在被驱逐，等待驱逐完成后重新加载
+                    item.awaitRemoved();
+                    continue;
+                }
+                item.referenced = true;
                 try {
-                    TimeUnit.MILLISECONDS.sleep(2);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    return item.awaitLoaded();
+                } catch (ExecutionException e) {
+                    // 加载失败，由加载线程负责移除，重新尝试
+                    continue;
                 }
-                continue;
             }
 
-            T it;
-            if ((it = cache.get(key)) != null) {
-                references.computeIfPresent(key, (k, v) -> v + 1);
-                lock.unlock();
-                return it;
+            if (!reserve()) {
+                if (policy != null && evictOne()) {
+                    continue;
+                }
+                throw Error.CacheFullException;
             }
 
-            if (capacity > 0 && count == capacity) {
-                lock.unlock();
-                throw Error.CacheFullException;
+            CacheItem<T> created = new CacheItem<>(key);
+            if (cache.putIfAbsent(key, created) != null) {
+                count.decrementAndGet();
+                continue;
+            }
+
+            T val;
+            try {
+                val = getForCache(key);
+            } catch (Exception e) {
+                cache.remove(key, created);
+                count.decrementAndGet();
+                created.loaded.completeExceptionally(e);
+                created.removed.complete(null);
+                throw e;
+            }
+            created.loaded.complete(val);
+            if (policy != null) {
+                policy.onLoaded(created);
             }
+            return val;
+        }
+    }
 
-            ++count;
-            getting.add(key);
-            lock.unlock();
-            break;
+    /**
+     * 预载入一批资源，载入完成后不持有引用，留在缓存中等待被访问或驱逐
+     * 仅常驻模式可用；已在缓存中的key被跳过，没有可驱逐的资源时放弃剩余的key
+     * 载入期间其它线程访问这些资源时会等待载入完成
+     * @param keys
+     */
+    protected void preload(long[] keys) {
+        if (policy == null) {
+            return;
+        }
+        List<CacheItem<T>> items = new ArrayList<>();
+        for (long key : keys) {
+            if (cache.containsKey(key)) {
+                continue;
+            }
+            if (!reserveOrEvict()) {
+                break;
+            }
+            CacheItem<T> created = new CacheItem<>(key);
+            if (cache.putIfAbsent(key, created) != null) {
+                count.decrementAndGet();
+                continue;
+            }
+            items.add(created);
+        }
+        if (items.isEmpty()) {
+            return;
         }
 
-        T val;
+        long[] loading = new long[items.size()];
+        for (int i = 0; i < loading.length; ++i) {
+            loading[i] = items.get(i).key;
+        }
+        List<T> vals;
         try {
-            val = getForCache(key);
+            vals = getForCache(loading);
         } catch (Exception e) {
-            lock.lock();
-            try {
-                --count;
-                getting.remove(key);
-            } finally {
-                lock.unlock();
+            for (CacheItem<T> item : items) {
+                cache.remove(item.key, item);
+                count.decrementAndGet();
+                item.loaded.completeExceptionally(e);
+                item.removed.complete(null);
             }
-            throw e;
+            return;
+        }
+        for (int i = 0; i < loading.length; ++i) {
+            CacheItem<T> item = items.get(i);
+            item.loaded.complete(vals.get(i));
+            policy.onLoaded(item);
+            item.unpin();
         }
+    }
 
-        lock.lock();
-        try {
-            cache.put(key, val);
-            getting.remove(key);
-            references.put(key, 1);
-        } finally {
-            lock.unlock();
+    private boolean reserveOrEvict() {
+        while (!reserve()) {
+            if (!evictOne()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 占用一个缓存位置
+     */
+    private boolean reserve() {
+        while (true) {
+            int c = count.get();
+            if (capacity > 0 && c >= capacity) {
+                return false;
+            }
+            if (count.compareAndSet(c, c + 1)) {
+                return true;
+            }
         }
-        return val;
     }
 
     /**
-     * 强行释放一个缓存
+     * 按驱逐策略选出一个未被引用的资源，写回后移出缓存
+     * @return 没有可驱逐的资源时返回false
+     */
+    private boolean evictOne() {
+        CacheItem<T> victim = policy.victim();
+        if (victim == null) {
+            return false;
+        }
+        remove(victim);
+        return true;
+    }
+
+    /**
+     * 释放一个缓存的引用
+     * 默认模式下引用归零时写回并移除；常驻模式下只减少引用计数
      * @param key
      */
     public void release(long key) {
-        lock.lock();
+        CacheItem<T> item = cache.get(key);
+        if (item == null) {
+            return;
+        }
+        if (policy != null) {
+            item.unpin();
+            return;
+        }
+        if (item.release()) {
+            remove(item);
+        }
+    }
+
+    /**
+     * 写回并移除一个已标记为DEAD的缓存项
+     * 先写回再移除，保证其它线程不会在写回完成前从磁盘读到旧数据
+     */
+    private void remove(CacheItem<T> item) {
         try {
-            int cnt = references.get(key);
-            if (cnt == 1) {
-                releaseForCache(cache.get(key));
-                references.remove(key);
-                cache.remove(key);
-                --count;
-            } else {
-                references.computeIfPresent(key, (k, v) -> v - 1);
-            }
+            releaseForCache(item.loaded.join());
         } finally {
-            lock.unlock();
+            cache.remove(item.key, item);
+            count.decrementAndGet();
+            item.removed.complete(null);
         }
     }
 
+    /**
+     * 遍历所有已载入的资源
+     * @param action
+     */
+    protected void forEachCached(Consumer<T> action) {
+        cache.forEach((key, item) -> {
+            if (item.loaded.isDone() && !item.loaded.isCompletedExceptionally()) {
+                action.accept(item.loaded.join());
+            }
+        });
+    }
+
     /**
      * 关闭缓存时，写回所有数据
      */
     public void close() {
-        lock.lock();
-        try {
-            Iterator<Map.Entry<Long, T>> iterator = cache.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<Long, T> entry = iterator.next();
-                releaseForCache(entry.getValue());
-                references.remove(entry.getKey());
-                iterator.remove();
+        cache.forEach((key, item) -> {
+            if (item.loaded.isDone() && !item.loaded.isCompletedExceptionally()) {
+                releaseForCache(item.loaded.join());
             }
-        } finally {
-            lock.unlock();
+            cache.remove(key, item);
+            count.decrementAndGet();
+            item.removed.complete(null);
+        });
+        if (policy != null) {
+            policy.clear();
         }
     }
 
@@ -152,6 +267,20 @@ public abstract class AbstractCache<T> {
      */
     protected abstract T getForCache(long key) throws Exception;
 
+    /**
+     * 批量获取不在缓存中的资源，供preload使用，默认逐个获取
+     * @param keys
+     * @return 与keys一一对应的资源
+     * @throws Exception
+     */
+    protected List<T> getForCache(long[] keys) throws Exception {
+        List<T> res = new ArrayList<>(keys.length);
+        for (long key : keys) {
+            res.add(getForCache(key));
+        }
+        return res;
+    }
+
     /**
      * 当资源被驱逐时的写回行为
      * @param obj
@@ -0,0 +1,86 @@
+package com.mxp.mdb.backend.common;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AbstractCache 中的缓存项
+ * refs 为引用计数，DEAD 表示该项已被选中驱逐，不能再被引用
+ */
+class CacheItem<T> {
+
+    private static final int DEAD = -1;
+
+    final long key;
+    final CompletableFuture<T> loaded = new CompletableFuture<>();
+    final CompletableFuture<Void> removed = new CompletableFuture<>();
+    final AtomicInteger refs = new AtomicInteger(1);
+
+    /**
+     * 自上次被驱逐策略扫描后是否被访问过
+     */
+    volatile boolean referenced;
+
+    CacheItem(long key) {
+        this.key = key;
+    }
+
+    boolean retain() {
+        while (true) {
+            int r = refs.get();
+            if (r == DEAD) {
+                return false;
+            }
+            if (refs.compareAndSet(r, r + 1)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 引用计数减一，计数归零并成功标记为DEAD时返回true
+     */
+    boolean release() {
+        return refs.decrementAndGet() == 0 && refs.compareAndSet(0, DEAD);
+    }
+
+    /**
+     * 常驻模式下只减少引用计数
+     */
+    void unpin() {
+        refs.decrementAndGet();
+    }
+
+    /**
+     * 未被引用时标记为DEAD
+     */
+    boolean tryEvict() {
+        return refs.compareAndSet(0, DEAD);
+    }
+
+    boolean isPinned() {
+        return refs.get() != 0;
+    }
+
+    T awaitLoaded() throws ExecutionException {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    return loaded.get();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    void awaitRemoved() {
+        removed.join();
+    }
+}
@@ -0,0 +1,250 @@
+package com.mxp.mdb.backend.common;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 以long为键的并发开放寻址哈希表，读写都不装箱
+ * 键按哈希高位分到各段，每段一张线性探测的表，修改时加段锁，读取不加锁。
+ * <p>
+ * 读取先volatile读值再读键，写入先写键再volatile写值，读到非null的值时一定能看到对应的键。
+ * 删除只把值置为墓碑，槽中的键不变，同一个键再次写入时复用它的墓碑，因此一个槽一旦写入键就不会变成其它键，
+ * 读取不会把一个键的值当成另一个键的。墓碑在扩容时清除，扩容构造新表后整体替换，旧表不再被修改，
+ * 正在读旧表的线程看到的是替换时的状态。
+ * <p>
+ * 遍历和 keys 与 ConcurrentHashMap 一样是弱一致的，遍历期间可以删除。值不能为null。
+ */
+public class ConcurrentLongObjectMap<V> {
+
+    public interface Visitor<V> {
+        void visit(long key, V value);
+    }
+
+    private static final int SEGMENT_BITS = 4;
+    private static final int SEGMENTS = 1 << SEGMENT_BITS;
+
+    private static final Object REMOVED = new Object();
+
+    static class Table {
+        final long[] keys;
+        final AtomicReferenceArray<Object> vals;
+        final int mask;
+
+        Table(int capacity) {
+            keys = new long[capacity];
+            vals = new AtomicReferenceArray<>(capacity);
+            mask = capacity - 1;
+        }
+    }
+
+    static class Segment {
+        final ReentrantLock lock = new ReentrantLock();
+
+        volatile Table table = new Table(LongObjectMap.tableSize(0));
+
+        /**
+         * 有值的槽数，只在段锁内修改
+         */
+        volatile int size;
+
+        /**
+         * 有值和墓碑的槽数之和，超过容量一半时扩容
+         */
+        int used;
+    }
+
+    private final Segment[] segments;
+
+    public ConcurrentLongObjectMap() {
+        segments = new Segment[SEGMENTS];
+        for (int i = 0; i < SEGMENTS; ++i) {
+            segments[i] = new Segment();
+        }
+    }
+
+    private Segment segment(long hash) {
+        return segments[(int) (hash >>> (Long.SIZE - SEGMENT_BITS))];
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        long hash = LongObjectMap.hash(key);
+        Table t = segment(hash).table;
+        for (int i = LongObjectMap.index(hash, t.mask); ; i = (i + 1) & t.mask) {
+            Object v = t.vals.get(i);
+            if (v == null) {
+                return null;
+            }
+            if (t.keys[i] == key) {
+                return v == REMOVED ? null : (V) v;
+            }
+        }
+    }
+
+    public boolean containsKey(long key) {
+        return get(key) != null;
+    }
+
+    /**
+     * @return 原来的值，没有时返回null
+     */
+    public V put(long key, V value) {
+        return doPut(key, value, false);
+    }
+
+    /**
+     * @return 已有的值，没有时写入并返回null
+     */
+    public V putIfAbsent(long key, V value) {
+        return doPut(key, value, true);
+    }
+
+    @SuppressWarnings("unchecked")
+    private V doPut(long key, V value, boolean onlyIfAbsent) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        long hash = LongObjectMap.hash(key);
+        Segment s = segment(hash);
+        s.lock.lock();
+        try {
+            Table t = s.table;
+            int i = LongObjectMap.index(hash, t.mask);
+            for (Object v; (v = t.vals.get(i)) != null; i = (i + 1) & t.mask) {
+                if (t.keys[i] != key) {
+                    continue;
+                }
+                if (v == REMOVED) {
+                    t.vals.set(i, value);
+                    s.size = s.size + 1;
+                    return null;
+                }
+                if (!onlyIfAbsent) {
+                    t.vals.set(i, value);
+                }
+                return (V) v;
+            }
+            t.keys[i] = key;
+            t.vals.set(i, value);
+            s.size = s.size + 1;
+            if (++s.used > (t.mask + 1) >>> 1) {
+                rehash(s);
+            }
+            return null;
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * @return 被删除的值，没有时返回null
+     */
+    public V remove(long key) {
+        return doRemove(key, null);
+    }
+
+    /**
+     * 仅当键对应的值为value时删除
+     * @return 是否删除
+     */
+    public boolean remove(long key, V value) {
+        return value != null && doRemove(key, value) != null;
+    }
+
+    /**
+     * @param expected 为null时无条件删除
+     */
+    @SuppressWarnings("unchecked")
+    private V doRemove(long key, Object expected) {
+        long hash = LongObjectMap.hash(key);
+        Segment s = segment(hash);
+        s.lock.lock();
+        try {
+            Table t = s.table;
+            for (int i = LongObjectMap.index(hash, t.mask); ; i = (i + 1) & t.mask) {
+                Object v = t.vals.get(i);
+                if (v == null) {
+                    return null;
+                }
+                if (t.keys[i] != key) {
+                    continue;
+                }
+                if (v == REMOVED || (expected != null && v != expected)) {
+                    return null;
+                }
+                t.vals.set(i, REMOVED);
+                s.size = s.size - 1;
+                return (V) v;
+            }
+        } finally {
+            s.lock.unlock();
+        }
+    }
+
+    /**
+     * 按现有项数重建段的表，去掉墓碑，调用方需持有段锁
+     */
+    private void rehash(Segment s) {
+        Table old = s.table;
+        Table t = new Table(LongObjectMap.tableSize(s.size << 1));
+        for (int i = 0; i <= old.mask; ++i) {
+            Object v = old.vals.get(i);
+            if (v == null || v == REMOVED) {
+                continue;
+            }
+            int j = LongObjectMap.index(LongObjectMap.hash(old.keys[i]), t.mask);
+            while (t.vals.get(j) != null) {
+                j = (j + 1) & t.mask;
+            }
+            t.keys[j] = old.keys[i];
+            t.vals.set(j, v);
+        }
+        s.used = s.size;
+        s.table = t;
+    }
+
+    public int size() {
+        int size = 0;
+        for (Segment s : segments) {
+            size += s.size;
+        }
+        return size;
+    }
+
+    /**
+     * 当前所有的键
+     */
+    public long[] keys() {
+        long[] keys = new long[size()];
+        int n = 0;
+        for (Segment s : segments) {
+            Table t = s.table;
+            for (int i = 0; i <= t.mask; ++i) {
+                Object v = t.vals.get(i);
+                if (v == null || v == REMOVED) {
+                    continue;
+                }
+                if (n == keys.length) {
+                    keys = Arrays.copyOf(keys, Math.max(8, n << 1));
+                }
+                keys[n++] = t.keys[i];
+            }
+        }
+        return n == keys.length ? keys : Arrays.copyOf(keys, n);
+    }
+
+    @SuppressWarnings("unchecked")
+    public void forEach(Visitor<? super V> visitor) {
+        for (Segment s : segments) {
+            Table t = s.table;
+            for (int i = 0; i <= t.mask; ++i) {
+                Object v = t.vals.get(i);
+                if (v == null || v == REMOVED) {
+                    continue;
+                }
+                visitor.visit(t.keys[i], (V) v);
+            }
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.mxp.mdb.backend.common;
+
+import java.util.Arrays;
+
+/**
+ * 以long为键、int为值的开放寻址哈希表，读写都不装箱
+ * 线性探测，键为0的槽即空槽，键0本身单独保存；删除时前移补位，不留墓碑。
+ * 不存在的键返回构造时指定的 missing 值。非线程安全，由调用方加锁。
+ */
+public class LongIntMap {
+
+    private final int missing;
+
+    private long[] keys;
+    private int[] vals;
+    private int mask;
+    private int size;
+
+    private boolean hasZeroKey;
+    private int zeroValue;
+
+    /**
+     * @param missing 键不存在时get、put、remove的返回值
+     */
+    public LongIntMap(int missing) {
+        this(missing, 8);
+    }
+
+    public LongIntMap(int missing, int expected) {
+        this.missing = missing;
+        allocate(LongObjectMap.tableSize(expected));
+    }
+
+    public int get(long key) {
+        if (key == 0) {
+            return hasZeroKey ? zeroValue : missing;
+        }
+        for (int i = LongObjectMap.index(LongObjectMap.hash(key), mask); keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return vals[i];
+            }
+        }
+        return missing;
+    }
+
+    public boolean containsKey(long key) {
+        if (key == 0) {
+            return hasZeroKey;
+        }
+        for (int i = LongObjectMap.index(LongObjectMap.hash(key), mask); keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 原来的值，没有时返回missing
+     */
+    public int put(long key, int value) {
+        if (key == 0) {
+            int old = hasZeroKey ? zeroValue : missing;
+            if (!hasZeroKey) {
+                hasZeroKey = true;
+                ++size;
+            }
+            zeroValue = value;
+            return old;
+        }
+        int i = LongObjectMap.index(LongObjectMap.hash(key), mask);
+        for (; keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int old = vals[i];
+                vals[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        vals[i] = value;
+        if (++size > (mask + 1) >>> 1) {
+            rehash((mask + 1) << 1);
+        }
+        return missing;
+    }
+
+    /**
+     * @return 被删除的值，没有时返回missing
+     */
+    public int remove(long key) {
+        if (key == 0) {
+            if (!hasZeroKey) {
+                return missing;
+            }
+            hasZeroKey = false;
+            --size;
+            return zeroValue;
+        }
+        for (int i = LongObjectMap.index(LongObjectMap.hash(key), mask); keys[i] != 0; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                int old = vals[i];
+                shiftDown(i);
+                --size;
+                return old;
+            }
+        }
+        return missing;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        if (size == 0) {
+            return;
+        }
+        Arrays.fill(keys, 0);
+        hasZeroKey = false;
+        size = 0;
+    }
+
+    /**
+     * 同 LongObjectMap.shiftDown
+     */
+    private void shiftDown(int hole) {
+        for (int i = (hole + 1) & mask; keys[i] != 0; i = (i + 1) & mask) {
+            int home = LongObjectMap.index(LongObjectMap.hash(keys[i]), mask);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                vals[hole] = vals[i];
+                hole = i;
+            }
+        }
+        keys[hole] = 0;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldVals = vals;
+        allocate(capacity);
+        for (int i = 0; i < oldKeys.length; ++i) {
+            if (oldKeys[i] == 0) {
+                continue;
+            }
+            int j = LongObjectMap.index(LongObjectMap.hash(oldKeys[i]), mask);
+            while (keys[j] != 0) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = oldKeys[i];
+            vals[j] = oldVals[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        vals = new int[capacity];
+        mask = capacity - 1;
+    }
+}
@@ -0,0 +1,149 @@
+package com.mxp.mdb.backend.common;
+
+/**
+ * 以long为键的开放寻址哈希表，读写都不装箱
+ * 线性探测，值不能为null，值为null的槽即空槽，因此键可以为任意long；
+ * 删除时把探测链上后面的项前移补位，不留墓碑。非线程安全，由调用方加锁。
+ */
+public class LongObjectMap<V> {
+
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private Object[] vals;
+    private int mask;
+    private int size;
+
+    public LongObjectMap() {
+        this(MIN_CAPACITY >>> 1);
+    }
+
+    /**
+     * @param expected 预计的项数，不超过它时不会扩容
+     */
+    public LongObjectMap(int expected) {
+        allocate(tableSize(expected));
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(long key) {
+        for (int i = index(hash(key), mask); ; i = (i + 1) & mask) {
+            Object v = vals[i];
+            if (v == null) {
+                return null;
+            }
+            if (keys[i] == key) {
+                return (V) v;
+            }
+        }
+    }
+
+    /**
+     * @return 原来的值，没有时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long key, V value) {
+        if (value == null) {
+            throw new NullPointerException();
+        }
+        int i = index(hash(key), mask);
+        for (; vals[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) vals[i];
+                vals[i] = value;
+                return old;
+            }
+        }
+        keys[i] = key;
+        vals[i] = value;
+        if (++size > (mask + 1) >>> 1) {
+            rehash((mask + 1) << 1);
+        }
+        return null;
+    }
+
+    /**
+     * @return 被删除的值，没有时返回null
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long key) {
+        for (int i = index(hash(key), mask); vals[i] != null; i = (i + 1) & mask) {
+            if (keys[i] == key) {
+                V old = (V) vals[i];
+                shiftDown(i);
+                --size;
+                return old;
+            }
+        }
+        return null;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * 删除hole处的项后，把探测链上后面能前移的项移到空位，直到遇到空槽
+     * 项能移到空位，当且仅当它的初始位置不在 (hole, i] 之间
+     */
+    private void shiftDown(int hole) {
+        for (int i = (hole + 1) & mask; vals[i] != null; i = (i + 1) & mask) {
+            int home = index(hash(keys[i]), mask);
+            if (((i - home) & mask) >= ((i - hole) & mask)) {
+                keys[hole] = keys[i];
+                vals[hole] = vals[i];
+                hole = i;
+            }
+        }
+        vals[hole] = null;
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        Object[] oldVals = vals;
+        allocate(capacity);
+        for (int i = 0; i < oldVals.length; ++i) {
+            if (oldVals[i] == null) {
+                continue;
+            }
+            int j = index(hash(oldKeys[i]), mask);
+            while (vals[j] != null) {
+                j = (j + 1) & mask;
+            }
+            keys[j] = oldKeys[i];
+            vals[j] = oldVals[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        vals = new Object[capacity];
+        mask = capacity - 1;
+    }
+
+    /**
+     * 装载因子不超过1/2的最小2的幂
+     */
+    static int tableSize(int expected) {
+        int capacity = MIN_CAPACITY;
+        while (capacity >>> 1 < expected) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    /**
+     * 乘以黄金分割常数打散键，高位用于分段，折叠后的低位用于定位槽
+     */
+    static long hash(long key) {
+        return key * 0x9E3779B97F4A7C15L;
+    }
+
+    static int index(long hash, int mask) {
+        return (int) (hash ^ (hash >>> 32)) & mask;
+    }
+}
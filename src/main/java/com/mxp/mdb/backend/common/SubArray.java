@@ -1,15 +1,19 @@
 package com.mxp.mdb.backend.common;
 
+import java.nio.ByteBuffer;
+
 /**
+ * ByteBuffer中[start, end)的一段，按绝对位置访问
+ *
  * @author mxp
  * @date 2023/4/13 19:40
  */
 public class SubArray {
-    public byte[] raw;
+    public ByteBuffer raw;
     public int start;
     public int end;
 
-    public SubArray(byte[] raw, int start, int end) {
+    public SubArray(ByteBuffer raw, int start, int end) {
         this.raw = raw;
         this.start = start;
         this.end = end;
@@ -0,0 +1,154 @@
+package com.mxp.mdb.backend.common;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 2Q 驱逐策略
+ * A1in: 首次载入的资源进入的FIFO队列，从这里被驱逐的资源只在A1out中留下key
+ * A1out: 最近从A1in驱逐的key，再次缺失时直接进入Am；key按驱逐顺序存放在环形数组中，满时覆盖最旧的
+ * Am: 被证明多次使用的热资源，使用CLOCK近似LRU，命中只设置referenced标记
+ * <p>
+ * 顺序扫描的资源只会经过A1in，不会挤出Am中的热资源（例如B+树的内部节点所在页）。
+ * 策略只在缺失和驱逐时加锁，命中路径不经过这里。
+ */
+class TwoQueue<T> {
+
+    private final ArrayDeque<CacheItem<T>> in;
+    private final ArrayDeque<CacheItem<T>> main;
+
+    /**
+     * A1out中的key及其在ghosts中的位置
+     */
+    private final LongIntMap out;
+    private final long[] ghosts;
+
+    /**
+     * ghosts中下一个写入的位置，以及已写入的位置数
+     */
+    private int ghostNext;
+    private int ghostCount;
+
+    /**
+     * A1in的目标大小，超过时优先从A1in驱逐
+     */
+    private final int inLimit;
+    private final int outLimit;
+
+    private final Lock lock;
+
+    TwoQueue(int capacity) {
+        in = new ArrayDeque<>();
+        main = new ArrayDeque<>();
+        inLimit = Math.max(1, capacity / 4);
+        outLimit = Math.max(1, capacity / 2);
+        out = new LongIntMap(-1, outLimit);
+        ghosts = new long[outLimit];
+        lock = new ReentrantLock();
+    }
+
+    /**
+     * 资源载入完成
+     */
+    void onLoaded(CacheItem<T> item) {
+        lock.lock();
+        try {
+            item.referenced = false;
+            if (out.remove(item.key) >= 0) {
+                main.addLast(item);
+            } else {
+                in.addLast(item);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 选出一个未被引用的资源并将其标记为DEAD
+     * @return 所有资源都被引用时返回null
+     */
+    CacheItem<T> victim() {
+        lock.lock();
+        try {
+            CacheItem<T> victim = null;
+            if (in.size() > inLimit || main.isEmpty()) {
+                victim = evictFromIn();
+            }
+            if (victim == null) {
+                victim = evictFromMain();
+            }
+            if (victim == null) {
+                victim = evictFromIn();
+            }
+            return victim;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private CacheItem<T> evictFromIn() {
+        Iterator<CacheItem<T>> iterator = in.iterator();
+        while (iterator.hasNext()) {
+            CacheItem<T> item = iterator.next();
+            if (item.tryEvict()) {
+                iterator.remove();
+                addGhost(item.key);
+                return item;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 把key加入A1out，覆盖最旧的位置
+     * 被覆盖的key可能已经重新载入或在更新的位置上，只有仍指向该位置时才删除
+     */
+    private void addGhost(long key) {
+        if (ghostCount == outLimit) {
+            long oldest = ghosts[ghostNext];
+            if (out.get(oldest) == ghostNext) {
+                out.remove(oldest);
+            }
+        } else {
+            ++ghostCount;
+        }
+        ghosts[ghostNext] = key;
+        out.put(key, ghostNext);
+        ghostNext = (ghostNext + 1) % outLimit;
+    }
+
+    /**
+     * CLOCK：被访问过的资源获得第二次机会
+     */
+    private CacheItem<T> evictFromMain() {
+        for (int i = main.size() << 1; i > 0 && !main.isEmpty(); --i) {
+            CacheItem<T> item = main.pollFirst();
+            if (item.referenced || item.isPinned()) {
+                item.referenced = false;
+                main.addLast(item);
+                continue;
+            }
+            if (item.tryEvict()) {
+                return item;
+            }
+            main.addLast(item);
+        }
+        return null;
+    }
+
+    void clear() {
+        lock.lock();
+        try {
+            in.clear();
+            main.clear();
+            out.clear();
+            ghostNext = 0;
+            ghostCount = 0;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -2,6 +2,10 @@ package com.mxp.mdb.backend.dm;
 
 import com.mxp.mdb.backend.dm.dataItem.DataItem;
 
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
 /**
  * @author mxp
  * @date 2023/4/13 19:04
@@ -10,6 +14,47 @@ public interface DataManager {
 
     DataItem read(long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+
+    /**
+     * 插入不会有索引指向的数据，清理可以直接沿数据页找到并释放它，见 unindexed
+     */
+    long insertUnindexed(long xid, byte[] data) throws Exception;
+
+    /**
+     * 提示即将读取uid所在的页
+     */
+    void prefetch(long uid);
+
+    /**
+     * 将uid处的数据标记为已释放，调用方需保证已没有索引指向它
+     * 释放经由日志记录在页面中，重启后由 takeFreed 重新找到
+     */
+    void free(long uid) throws Exception;
+
+    /**
+     * 取出打开时在数据页中找到的已释放数据，页号到页内位置，只能取一次
+     * 重启后没有事务会访问这些数据，可以直接回收
+     */
+    Map<Integer, Set<Short>> takeFreed();
+
+    /**
+     * 数据页的页数，数据页的页号从2开始
+     */
+    int getPageNumber();
+
+    /**
+     * pageNo页中合法且没有索引指向的数据
+     */
+    List<Long> unindexed(int pageNo) throws Exception;
+
+    /**
+     * 回收pageNo页尾连续的已释放数据占用的空间，并将页面重新登记到页面索引
+     * 页面正被插入使用时放弃，等待下次回收
+     * @param pageNo
+     * @param offsets 该页中已释放、且不会再被访问的数据的位置，被回收的从中移除
+     * @return 回收的字节数
+     */
+    int reclaim(int pageNo, Set<Short> offsets) throws Exception;
     void closeDataManager();
 
 }
@@ -1,6 +1,7 @@
 package com.mxp.mdb.backend.dm;
 
 import com.mxp.mdb.backend.common.AbstractCache;
+import com.mxp.mdb.backend.common.SubArray;
 import com.mxp.mdb.backend.dm.dataItem.DataItem;
 import com.mxp.mdb.backend.dm.dataItem.DataItemImpl;
 import com.mxp.mdb.backend.dm.logger.Logger;
@@ -9,6 +10,7 @@ import com.mxp.mdb.backend.dm.page.CommonPage;
 import com.mxp.mdb.backend.dm.page.FirstPage;
 import com.mxp.mdb.backend.dm.page.Page;
 import com.mxp.mdb.backend.dm.pageCache.PageCache;
+import com.mxp.mdb.backend.dm.pageCache.MappedPageCacheImpl;
 import com.mxp.mdb.backend.dm.pageCache.PageCacheImpl;
 import com.mxp.mdb.backend.dm.pageIndex.PageIndex;
 import com.mxp.mdb.backend.dm.pageIndex.PageInfo;
@@ -18,8 +20,23 @@ import com.mxp.mdb.backend.utils.Parser;
 import com.mxp.mdb.common.error.Error;
 
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
+ * 定期执行模糊checkpoint：不等待脏页写回，只把活跃事务表和脏页表写入一条checkpoint日志，
+ * 再将该日志的位置写入第一页。异常关闭后恢复从这两张表需要的最早的日志开始，之前的日志段可以删除
+ *
  * @author mxp
  * @date 2023/4/13 19:09
  */
@@ -30,6 +47,23 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     private Logger logger;
     private PageIndex pIndex;
     private Page pageOne;
+    private ScheduledExecutorService checkpointer;
+
+    /**
+     * 活跃事务表：每个写过日志的事务写第一条日志前的日志末尾位置，事务结束且结束状态已持久化后在checkpoint时清理
+     * 崩溃后撤销未完成的事务需要从这里开始的日志，结束状态未持久化的事务崩溃后仍是未完成的
+     */
+    private ConcurrentHashMap<Long, Long> firstLogPosition;
+
+    /**
+     * 打开时在数据页中找到的已释放数据，由 takeFreed 取出
+     */
+    private Map<Integer, Set<Short>> freedOnOpen;
+
+    /**
+     * checkpoint的间隔
+     */
+    private static final long CHECKPOINT_INTERVAL_SECONDS = 30;
 
     public DataManagerImpl(TransactionManager tm, PageCache pc, Logger logger) {
         super(0);
@@ -37,6 +71,66 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         this.pc = pc;
         this.logger = logger;
         pIndex = new PageIndex();
+        firstLogPosition = new ConcurrentHashMap<>();
+        freedOnOpen = new HashMap<>();
+    }
+
+    /**
+     * 启动定期checkpoint
+     */
+    void startCheckpointer() {
+        checkpointer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "checkpointer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        checkpointer.scheduleWithFixedDelay(this::checkpoint,
+                CHECKPOINT_INTERVAL_SECONDS, CHECKPOINT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    /**
+     * begin之前写日志的修改，要么已在脏页表中，要么已写回刷盘；之后的日志恢复时总会重做
+     * 活跃事务表在记录begin之后收集，begin之前写过日志的未完成事务都在表中
+     * checkpoint日志持久化并记入第一页后，恢复不再需要的日志段被删除
+     */
+    public void checkpoint() {
+        long begin = logger.tail();
+        int pageNumber = pc.getPageNumber();
+        Map<Integer, Long> dirtyPages = pc.dirtyPageTable();
+
+        long horizon = begin;
+        Map<Long, Long> activeTransactions = new HashMap<>();
+        Iterator<Map.Entry<Long, Long>> iterator = firstLogPosition.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Long, Long> entry = iterator.next();
+            long xid = entry.getKey();
+            if (!tm.isActive(xid) && tm.isDurable(xid)) {
+                iterator.remove();
+            } else {
+                activeTransactions.put(entry.getKey(), entry.getValue());
+                horizon = Math.min(horizon, entry.getValue());
+            }
+        }
+        for (long recLSN : dirtyPages.values()) {
+            horizon = Math.min(horizon, recLSN);
+        }
+
+        long position = logger.log(Recover.logCheckpoint(begin, activeTransactions, dirtyPages));
+        FirstPage.setCheckpoint(pageOne, position, pageNumber);
+        pc.flushPage(pageOne);
+        logger.removeBefore(horizon);
+    }
+
+    /**
+     * 写日志前记录事务的第一条日志不早于当前日志末尾
+     * 超级事务的修改不会被撤销，无需记录
+     * @return 日志的位置
+     */
+    private long log(long xid, byte[] log) {
+        if (xid != TransactionManager.SUPER_XID && !firstLogPosition.containsKey(xid)) {
+            firstLogPosition.putIfAbsent(xid, logger.tail());
+        }
+        return logger.log(log);
     }
 
     @Override
@@ -79,7 +173,25 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     }
 
     /**
-     * 初始化pageIndex
+     * 检查数据文件的格式，必须在打开日志之前调用
+     * 打开日志会截断日志末尾，旧格式的数据库要在被改动之前拒绝
+     */
+    static void checkFormat(PageCache pc) {
+        Page page = null;
+        try {
+            page = pc.getPage(1);
+        } catch (Exception e) {
+            Panic.panic(e);
+        }
+        boolean valid = FirstPage.checkFormat(page);
+        page.release();
+        if (!valid) {
+            Panic.panic(Error.BadDataFileException);
+        }
+    }
+
+    /**
+     * 初始化pageIndex，同时找出各页中已释放的数据
      */
     void initPageIndex() {
         int pageNumber = pc.getPageNumber();
@@ -90,17 +202,70 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
             } catch (Exception e) {
                 Panic.panic(e);
             }
+            Set<Short> offsets = new HashSet<>();
+            ByteBuffer data = page.getData();
+            short end = CommonPage.getFreeSpaceOffset(page);
+            for (short offset = CommonPage.OFFSET_DATA; offset < end;
+                 offset += DataItem.getDataItemRawLength(data, offset)) {
+                if (DataItem.isDataItemRawFreed(data, offset)) {
+                    offsets.add(offset);
+                }
+            }
+            if (!offsets.isEmpty()) {
+                freedOnOpen.put(i, offsets);
+            }
             pIndex.add(i, CommonPage.getPageFreeSpace(page));
             page.release();
         }
     }
 
+    @Override
+    public synchronized Map<Integer, Set<Short>> takeFreed() {
+        Map<Integer, Set<Short>> freed = freedOnOpen;
+        freedOnOpen = new HashMap<>();
+        return freed;
+    }
+
+    @Override
+    public int getPageNumber() {
+        return pc.getPageNumber();
+    }
+
     /**
-     * 为xid生成update日志
+     * 与 reclaim 相同，先从页面索引中取出页面，遍历时不会有插入，页面正被插入使用时返回空，等待下次清理
+     */
+    @Override
+    public List<Long> unindexed(int pageNo) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        Page page = pc.getPage(pageNo);
+        try {
+            if (pIndex.remove(pageNo, CommonPage.getPageFreeSpace(page)) == null) {
+                return uids;
+            }
+            try {
+                ByteBuffer data = page.getData();
+                short end = CommonPage.getFreeSpaceOffset(page);
+                for (short offset = CommonPage.OFFSET_DATA; offset < end;
+                     offset += DataItem.getDataItemRawLength(data, offset)) {
+                    if (DataItem.isDataItemRawUnindexed(data, offset)) {
+                        uids.add(Parser.addressToUid(pageNo, offset));
+                    }
+                }
+            } finally {
+                pIndex.add(pageNo, CommonPage.getPageFreeSpace(page));
+            }
+        } finally {
+            page.release();
+        }
+        return uids;
+    }
+
+    /**
+     * 为xid生成update日志，并记录到数据所在页的PageLSN
      */
     public void logDataItem(long xid, DataItem item) {
         byte[] log = Recover.logUpdate(xid, item);
-        logger.log(log);
+        CommonPage.setPageLSN(item.page(), log(xid, log));
     }
 
     @Override
@@ -113,9 +278,93 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         return item;
     }
 
+    @Override
+    public void prefetch(long uid) {
+        pc.prefetch((int) (uid >>> 32));
+    }
+
+    /**
+     * 标记已释放的修改由超级事务完成，不会被撤销
+     */
+    @Override
+    public void free(long uid) throws Exception {
+        DataItem item = read(uid);
+        if (item == null) {
+            return;
+        }
+        item.before();
+        try {
+            SubArray raw = item.getRaw();
+            DataItem.setDataItemRawFreed(raw.raw, raw.start);
+        } finally {
+            item.after(TransactionManager.SUPER_XID);
+        }
+        item.release();
+    }
+
+    /**
+     * 页面在索引中时没有插入者，先从索引中取出，空闲位置就只由这里修改
+     * uid即数据在页面中的位置，不能移动合法的数据来整理页面，只能回收最后一个不可回收的数据之后的空间
+     */
+    @Override
+    public int reclaim(int pageNo, Set<Short> offsets) throws Exception {
+        Page page = pc.getPage(pageNo);
+        try {
+            if (pIndex.remove(pageNo, CommonPage.getPageFreeSpace(page)) == null) {
+                return 0;
+            }
+            short end = CommonPage.getFreeSpaceOffset(page);
+            try {
+                short tail = lastInUseEnd(page, end, offsets);
+                if (tail == end) {
+                    return 0;
+                }
+                page.beforeModify();
+                try {
+                    long lsn = log(TransactionManager.SUPER_XID, Recover.logTruncate(page, tail));
+                    CommonPage.truncate(page, tail);
+                    CommonPage.setPageLSN(page, lsn);
+                } finally {
+                    page.afterModify();
+                }
+                offsets.removeIf(offset -> offset >= tail);
+                return end - tail;
+            } finally {
+                pIndex.add(pageNo, CommonPage.getPageFreeSpace(page));
+            }
+        } finally {
+            page.release();
+        }
+    }
+
+    /**
+     * 从页面开头逐个遍历DataItem，找到最后一个不可回收的数据的结尾
+     */
+    private short lastInUseEnd(Page page, short end, Set<Short> offsets) {
+        ByteBuffer data = page.getData();
+        short offset = CommonPage.OFFSET_DATA;
+        short tail = offset;
+        while (offset < end) {
+            short next = (short) (offset + DataItem.getDataItemRawLength(data, offset));
+            if (DataItem.isDataItemRawValid(data, offset) || !offsets.contains(offset)) {
+                tail = next;
+            }
+            offset = next;
+        }
+        return tail;
+    }
+
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        byte[] raw = DataItem.wrapDataItemRaw(data);
+        return insertRaw(xid, DataItem.wrapDataItemRaw(data));
+    }
+
+    @Override
+    public long insertUnindexed(long xid, byte[] data) throws Exception {
+        return insertRaw(xid, DataItem.wrapDataItemRaw(data, true));
+    }
+
+    private long insertRaw(long xid, byte[] raw) throws Exception {
         if (raw.length > CommonPage.MAX_FREE_SPACE) {
             Panic.panic(Error.DataTooLargeException);
         }
@@ -137,10 +386,16 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         int freeSize = 0;
         try {
             page = pc.getPage(pageInfo.getPageNo());
-            byte[] log = Recover.logInsert(xid, page, raw);
-            logger.log(log);
-
-            short offset = CommonPage.insert(page, raw);
+            short offset;
+            page.beforeModify();
+            try {
+                byte[] log = Recover.logInsert(xid, page, raw);
+                long lsn = log(xid, log);
+                offset = CommonPage.insert(page, raw);
+                CommonPage.setPageLSN(page, lsn);
+            } finally {
+                page.afterModify();
+            }
             page.release();
             return Parser.addressToUid(page.getPageNumber(), offset);
         } finally {
@@ -154,6 +409,12 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
 
     @Override
     public void closeDataManager() {
+        checkpointer.shutdown();
+        try {
+            checkpointer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
         super.close();
         logger.close();
         // 正常关闭时复制校验字节
@@ -171,15 +432,31 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
     }
 
     public static DataManager create(String path, long mem, TransactionManager tm) {
-        PageCache pageCache = PageCacheImpl.create(path, mem);
+        return create(path, mem, tm, false);
+    }
+
+    /**
+     * @param mmap 是否以文件映射的方式访问数据页，见 MappedPageCacheImpl
+     */
+    public static DataManager create(String path, long mem, TransactionManager tm, boolean mmap) {
+        PageCache pageCache = mmap ? MappedPageCacheImpl.create(path, mem) : PageCacheImpl.create(path, mem);
         Logger logger = LoggerImpl.create(path);
         DataManagerImpl dataManager = new DataManagerImpl(tm, pageCache, logger);
         dataManager.initPageOne();
+        dataManager.startCheckpointer();
         return dataManager;
     }
 
     public static DataManager open(String path, long mem, TransactionManager tm) {
-        PageCache pageCache = PageCacheImpl.open(path, mem);
+        return open(path, mem, tm, false);
+    }
+
+    /**
+     * @param mmap 是否以文件映射的方式访问数据页，见 MappedPageCacheImpl
+     */
+    public static DataManager open(String path, long mem, TransactionManager tm, boolean mmap) {
+        PageCache pageCache = mmap ? MappedPageCacheImpl.open(path, mem) : PageCacheImpl.open(path, mem);
+        checkFormat(pageCache);
         Logger logger = LoggerImpl.open(path);
         DataManagerImpl dataManager = new DataManagerImpl(tm, pageCache, logger);
 
@@ -194,6 +471,7 @@ public class DataManagerImpl extends AbstractCache<DataItem> implements DataMana
         FirstPage.setValidCheckOpen(dataManager.pageOne);
         // 将校验页刷盘
         pageCache.flushPage(dataManager.pageOne);
+        dataManager.startCheckpointer();
         return dataManager;
     }
 }
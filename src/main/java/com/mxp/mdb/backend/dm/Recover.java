@@ -4,14 +4,25 @@ import com.mxp.mdb.backend.common.SubArray;
 import com.mxp.mdb.backend.dm.dataItem.DataItem;
 import com.mxp.mdb.backend.dm.logger.Logger;
 import com.mxp.mdb.backend.dm.page.CommonPage;
+import com.mxp.mdb.backend.dm.page.FirstPage;
 import com.mxp.mdb.backend.dm.page.Page;
 import com.mxp.mdb.backend.dm.pageCache.PageCache;
 import com.mxp.mdb.backend.tm.TransactionManager;
 import com.mxp.mdb.backend.utils.ArrayUtil;
+import com.mxp.mdb.backend.utils.BufferUtil;
 import com.mxp.mdb.backend.utils.Panic;
 import com.mxp.mdb.backend.utils.Parser;
-
-import java.util.*;
+import com.mxp.mdb.common.error.Error;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 /**
  * 恢复策略
@@ -23,6 +34,12 @@ import java.util.*;
  * insertLog:
  * [LogType] [XID] [Pgno] [offset] [Raw]
  *
+ * checkpointLog:
+ * [LogType] [Begin] [ATTSize] [XID FirstLSN]... [DPTSize] [Pgno RecLSN]...
+ *
+ * truncateLog:
+ * [LogType] [XID] [Pgno] [offset]
+ *
  * @author mxp
  * @date 2023/4/13 9:52
  */
@@ -31,42 +48,118 @@ public class Recover {
 
     private static final byte LOG_TYPE_INSERT = 0;
     private static final byte LOG_TYPE_UPDATE = 1;
+    private static final byte LOG_TYPE_CHECKPOINT = 2;
+    private static final byte LOG_TYPE_TRUNCATE = 3;
 
     private static final int REDO = 0;
     private static final int UNDO = 1;
 
     static class LogInfo {
+        /**
+         * 日志的位置
+         */
+        long lsn;
         byte type;
         long xid;
         int pageNumber;
         short offset;
-    }
 
-    static class InsertLogInfo extends LogInfo {
-        byte[] raw;
+        /**
+         * 日志的Data，解析时不拷贝，重做和撤销直接从这里写入页面
+         */
+        byte[] log;
+
+        /**
+         * 是否属于未完成的事务，是则撤销，否则重做
+         */
+        boolean undo;
     }
 
-    static class UpdateLogInfo extends LogInfo {
-        byte[] oldRaw;
-        byte[] newRaw;
+    /**
+     * checkpoint日志的内容
+     */
+    static class CheckpointInfo {
+        /**
+         * 开始checkpoint时的日志末尾，之后的日志都需要重做
+         */
+        long begin;
+
+        /**
+         * 活跃事务表：事务到其第一条日志前的日志末尾
+         */
+        Map<Long, Long> att = new HashMap<>();
+
+        /**
+         * 脏页表：页号到recLSN，这些页从recLSN开始的日志需要重做
+         */
+        Map<Integer, Long> dpt = new HashMap<>();
+
+        /**
+         * 恢复需要的最早的日志位置
+         */
+        long start() {
+            long start = begin;
+            for (long lsn : att.values()) {
+                start = Math.min(start, lsn);
+            }
+            for (long lsn : dpt.values()) {
+                start = Math.min(start, lsn);
+            }
+            return start;
+        }
+
+        boolean needRedo(LogInfo info) {
+            if (info.lsn >= begin) {
+                return true;
+            }
+            Long recLSN = dpt.get(info.pageNumber);
+            return recLSN != null && info.lsn >= recLSN;
+        }
     }
 
+    /**
+     * 从最近一次checkpoint需要的最早的日志开始，只扫描一次日志：
+     * checkpoint之后的日志，以及脏页表中的页从其recLSN开始的日志，属于已结束事务的需要重做，未完成事务的全部日志需要撤销
+     * 需要的日志按页分组，各页互不影响，在ForkJoinPool中并行地先按日志顺序重做、再逆序撤销
+     * <p>
+     * 撤销没有日志，恢复结束时将所有页写回并把未完成的事务标记为回滚，之后的恢复不会再撤销它们
+     */
     public static void recover(TransactionManager tm, Logger logger, PageCache pageCache) {
-        logger.rewind();
-
-        byte[] raw;
-        int maxPageNo = 0;
-        LogInfo info = null;
-        while ((raw = logger.next()) != null) {
-            if (isInsertLog(raw)) {
-                info = parseInsertLog(raw);
-            } else if (isUpdateLog(raw)) {
-                info = parseUpdateLog(raw);
-            }
+        Page pageOne = getPage(pageCache, 1);
+        long checkpoint = FirstPage.getCheckpointPosition(pageOne);
+        int maxPageNo = FirstPage.getCheckpointPageNumber(pageOne);
+        pageOne.release();
+
+        // 没有checkpoint时重做全部日志
+        CheckpointInfo ckpt = new CheckpointInfo();
+        if (checkpoint != 0) {
+            logger.rewind(checkpoint);
+            ckpt = parseCheckpoint(logger.next());
+            logger.rewind(ckpt.start());
+        } else {
+            logger.rewind();
+        }
 
-            if (info.pageNumber > maxPageNo) {
-                maxPageNo = info.pageNumber;
+        // 每个事务只查询一次状态
+        Map<Long, Boolean> active = new HashMap<>();
+        Map<Integer, List<LogInfo>> pages = new HashMap<>();
+        long position = logger.position();
+        byte[] log;
+        while ((log = logger.next()) != null) {
+            if (log[OFFSET_TYPE] == LOG_TYPE_CHECKPOINT) {
+                position = logger.position();
+                continue;
+            }
+            LogInfo info = parseLog(log);
+            info.lsn = position;
+            info.undo = active.computeIfAbsent(info.xid, tm::isActive);
+            if (info.undo || ckpt.needRedo(info)) {
+                pages.computeIfAbsent(info.pageNumber, k -> new ArrayList<>()).add(info);
+                if (info.pageNumber > maxPageNo) {
+                    maxPageNo = info.pageNumber;
+                }
             }
+            position = logger.position();
         }
 
         if (maxPageNo == 0) {
@@ -74,35 +167,53 @@ public class Recover {
         }
         pageCache.truncateByBgno(maxPageNo);
 
-        redoTransactions(tm, logger, pageCache);
-        undoTransactions(tm, logger, pageCache);
-    }
-
-    private static void redoTransactions(TransactionManager tm, Logger logger, PageCache pageCache) {
-        logger.rewind();
-        byte[] log;
-        LogInfo info = null;
-        List<LogInfo> list = new ArrayList<>();
-        while ((log = logger.next()) != null) {
-            if (isInsertLog(log)) {
-                info = parseInsertLog(log);
-                info.type = LOG_TYPE_INSERT;
-            } else if (isUpdateLog(log)) {
-                info = parseUpdateLog(log);
-                info.type = LOG_TYPE_UPDATE;
+        List<Callable<Void>> tasks = new ArrayList<>(pages.size());
+        for (Map.Entry<Integer, List<LogInfo>> entry : pages.entrySet()) {
+            tasks.add(() -> {
+                recoverPage(pageCache, entry.getKey(), entry.getValue());
+                return null;
+            });
+        }
+        ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        try {
+            for (Future<Void> future : pool.invokeAll(tasks)) {
+                future.get();
             }
+        } catch (InterruptedException | ExecutionException e) {
+            Panic.panic(e);
+        } finally {
+            pool.shutdown();
+        }
 
-            if (!tm.isActive(info.xid)) {
-                list.add(info);
+        pageCache.flushAll();
+        for (Map.Entry<Long, Boolean> entry : active.entrySet()) {
+            if (entry.getValue()) {
+                tm.rollback(entry.getKey());
             }
         }
-        byte t;
-        for (LogInfo logInfo : list) {
-            if ((t = logInfo.type) == LOG_TYPE_INSERT) {
-                doInsertLog(pageCache, (InsertLogInfo) logInfo, REDO);
-            } else if (t == LOG_TYPE_UPDATE) {
-                doUpdateLog(pageCache, (UpdateLogInfo) logInfo, REDO);
+    }
+
+    /**
+     * 按日志顺序重做已结束事务的修改，再逆序撤销未完成事务的修改
+     * 位置不大于PageLSN的修改在崩溃前已写回，跳过重做；只需跳过重做的页不会被标记为脏页
+     */
+    private static void recoverPage(PageCache pageCache, int pageNumber, List<LogInfo> infos) {
+        Page page = getPage(pageCache, pageNumber);
+        try {
+            long pageLSN = CommonPage.getPageLSN(page);
+            for (LogInfo info : infos) {
+                if (!info.undo && info.lsn > pageLSN) {
+                    apply(page, info, REDO);
+                    CommonPage.setPageLSN(page, info.lsn);
+                }
             }
+            for (int i = infos.size() - 1; i >= 0; --i) {
+                if (infos.get(i).undo) {
+                    apply(page, infos.get(i), UNDO);
+                }
+            }
+        } finally {
+            page.release();
         }
     }
 
@@ -121,134 +232,120 @@ public class Recover {
      * [LogType] [XID] [Pgno] [offset] [Raw]
      *    1        8      4       2
      *
-     */
-    private static InsertLogInfo parseInsertLog(byte[] log) {
-        InsertLogInfo logInfo = new InsertLogInfo();
-        logInfo.xid = Parser.parseLong(Arrays.copyOfRange(log, OFFSET_XID, OFFSET_PAGE_NO));
-        logInfo.pageNumber = Parser.parseInt(Arrays.copyOfRange(log, OFFSET_PAGE_NO, OFFSET_OF));
-        logInfo.offset = Parser.parseShort(Arrays.copyOfRange(log, OFFSET_OF, OFFSET_INSERT_RAW));
-        logInfo.raw = Arrays.copyOfRange(log, OFFSET_INSERT_RAW, log.length);
-        return logInfo;
-    }
-
-    /*
      * updateLog:
      * [LogType] [XID] [UID] [OldRaw] [NewRaw]
      *     1       8      8
      *
+     * truncateLog 与没有Raw的insertLog相同，XID总是超级事务
+     *
      * UID
      * 低16位保存offset
      * 高32位保存pageno
      */
-    private static UpdateLogInfo parseUpdateLog(byte[] log) {
-        UpdateLogInfo logInfo = new UpdateLogInfo();
-        logInfo.xid = Parser.parseLong(Arrays.copyOfRange(log, OFFSET_XID, OFFSET_UPDATE_UID));
-        long uid = Parser.parseLong(Arrays.copyOfRange(log, OFFSET_UPDATE_UID, OFFSET_UPDATE_RAW));
-        logInfo.offset = (short) (uid & ((1 << 16) - 1));
-        uid >>>= 32;
-        logInfo.pageNumber = (int) (uid & ((1L << 32) - 1));
-        int len = (log.length - OFFSET_UPDATE_RAW) / 2;
-        logInfo.oldRaw = Arrays.copyOfRange(log, OFFSET_UPDATE_RAW, OFFSET_UPDATE_RAW + len);
-        logInfo.newRaw = Arrays.copyOfRange(log, OFFSET_UPDATE_RAW + len, OFFSET_UPDATE_RAW + (len << 1));
-        return logInfo;
-    }
-
-    private static void undoTransactions(TransactionManager tm, Logger logger, PageCache pageCache) {
-        logger.rewind();
-        Map<Long, List<LogInfo>> xidToLogRaw = new HashMap<>();
-        byte[] raw;
-        List<LogInfo> tmp;
-        LogInfo info = null;
-        while ((raw = logger.next()) != null) {
-            if (isInsertLog(raw)) {
-                info = parseInsertLog(raw);
-                info.type = LOG_TYPE_INSERT;
-            } else if (isUpdateLog(raw)) {
-                info = parseUpdateLog(raw);
-                info.type = LOG_TYPE_UPDATE;
-            }
-
-            if (tm.isActive(info.xid)) {
-                if ((tmp = xidToLogRaw.get(info.xid)) == null) {
-                    tmp = new ArrayList<>();
-                    xidToLogRaw.put(info.xid, tmp);
-                }
-                tmp.add(info);
-            }
-        }
-
-        byte b;
-        for (Map.Entry<Long, List<LogInfo>> entry : xidToLogRaw.entrySet()) {
-            List<LogInfo> logInfos = entry.getValue();
-            for (int i = logInfos.size() - 1; i >= 0; --i) {
-                if ((b = (info = logInfos.get(i)).type) == LOG_TYPE_INSERT) {
-                    doInsertLog(pageCache, (InsertLogInfo) info, UNDO);
-                } else if (b == LOG_TYPE_UPDATE) {
-                    doUpdateLog(pageCache, (UpdateLogInfo) info, UNDO);
-                }
-            }
+    private static LogInfo parseLog(byte[] log) {
+        ByteBuffer buffer = ByteBuffer.wrap(log);
+        LogInfo info = new LogInfo();
+        info.type = log[OFFSET_TYPE];
+        info.xid = buffer.getLong(OFFSET_XID);
+        info.log = log;
+        if (info.type == LOG_TYPE_INSERT || info.type == LOG_TYPE_TRUNCATE) {
+            info.pageNumber = buffer.getInt(OFFSET_PAGE_NO);
+            info.offset = buffer.getShort(OFFSET_OF);
+        } else {
+            long uid = buffer.getLong(OFFSET_UPDATE_UID);
+            info.offset = (short) (uid & ((1 << 16) - 1));
+            uid >>>= 32;
+            info.pageNumber = (int) (uid & ((1L << 32) - 1));
         }
+        return info;
     }
 
-    private static void doInsertLog(PageCache pageCache, InsertLogInfo insertLogInfo, int type) {
-        Page page = getPage(pageCache, insertLogInfo);
-
-        try {
-            if (type == REDO) {
-                CommonPage.recoverInsert(page, insertLogInfo.raw, insertLogInfo.offset);
-            } else if (type == UNDO) {
-                DataItem.setDataItemRawInvalid(insertLogInfo.raw);
+    /**
+     * 重做插入即写入数据，撤销插入则写入被标记为非法的数据
+     * 重做更新写入NewRaw，撤销更新写入OldRaw
+     * 回收页尾空间由超级事务完成，只会重做
+     */
+    private static void apply(Page page, LogInfo info, int type) {
+        byte[] log = info.log;
+        if (info.type == LOG_TYPE_TRUNCATE) {
+            CommonPage.truncate(page, info.offset);
+        } else if (info.type == LOG_TYPE_INSERT) {
+            if (type == UNDO) {
+                DataItem.setDataItemRawInvalid(log, OFFSET_INSERT_RAW);
             }
-        } finally {
-            assert page != null;
-            page.release();
+            CommonPage.recoverInsert(page, log, OFFSET_INSERT_RAW, log.length - OFFSET_INSERT_RAW, info.offset);
+        } else {
+            int len = (log.length - OFFSET_UPDATE_RAW) / 2;
+            int from = type == REDO ? OFFSET_UPDATE_RAW + len : OFFSET_UPDATE_RAW;
+            CommonPage.recoverUpdate(page, log, from, len, info.offset);
         }
     }
 
-    private static void doUpdateLog(PageCache pageCache, UpdateLogInfo updateLogInfo, int type) {
-        byte[] raw;
-        if (type == REDO) {
-            raw = updateLogInfo.newRaw;
-        } else {
-            raw = updateLogInfo.oldRaw;
+    private static CheckpointInfo parseCheckpoint(byte[] log) {
+        if (log == null || log[OFFSET_TYPE] != LOG_TYPE_CHECKPOINT) {
+            Panic.panic(Error.BadLogFileException);
         }
-
-        Page page = getPage(pageCache, updateLogInfo);
-        try {
-            CommonPage.recoverUpdate(page, raw, updateLogInfo.offset);
-        } finally {
-            page.release();
+        ByteBuffer buffer = ByteBuffer.wrap(log, 1, log.length - 1);
+        CheckpointInfo info = new CheckpointInfo();
+        info.begin = buffer.getLong();
+        for (int i = buffer.getInt(); i > 0; --i) {
+            info.att.put(buffer.getLong(), buffer.getLong());
+        }
+        for (int i = buffer.getInt(); i > 0; --i) {
+            info.dpt.put(buffer.getInt(), buffer.getLong());
         }
+        return info;
     }
 
-    private static Page getPage(PageCache pageCache, LogInfo info) {
+    private static Page getPage(PageCache pageCache, int pageNumber) {
         Page page = null;
         try {
-            page = pageCache.getPage(info.pageNumber);
+            page = pageCache.getPage(pageNumber);
         } catch (Exception e) {
             Panic.panic(e);
         }
         return page;
     }
 
-    private static boolean isInsertLog(byte[] raw) {
-        return raw[0] == LOG_TYPE_INSERT;
-    }
-
-    private static boolean isUpdateLog(byte[] raw) {
-        return raw[0] == LOG_TYPE_UPDATE;
-    }
-
     public static byte[] logUpdate(long xid, DataItem item) {
         byte[] logType = {LOG_TYPE_UPDATE};
         byte[] XID = Parser.longToByte(xid);
         byte[] uid = Parser.longToByte(item.getUid());
         byte[] oldRaw = item.getOldRaw();
         SubArray raw = item.getRaw();
-        byte[] newRaw = Arrays.copyOfRange(raw.raw, raw.start, raw.end);
+        byte[] newRaw = BufferUtil.copyOfRange(raw.raw, raw.start, raw.end);
         return ArrayUtil.concat(logType, XID, uid, oldRaw, newRaw);
     }
 
+    /**
+     * @param begin 开始checkpoint时的日志末尾
+     * @param att 活跃事务表
+     * @param dpt 脏页表
+     */
+    public static byte[] logCheckpoint(long begin, Map<Long, Long> att, Map<Integer, Long> dpt) {
+        ByteBuffer buffer = ByteBuffer.allocate(1 + 8 + 4 + att.size() * 16 + 4 + dpt.size() * 12);
+        buffer.put(LOG_TYPE_CHECKPOINT).putLong(begin);
+        buffer.putInt(att.size());
+        for (Map.Entry<Long, Long> entry : att.entrySet()) {
+            buffer.putLong(entry.getKey()).putLong(entry.getValue());
+        }
+        buffer.putInt(dpt.size());
+        for (Map.Entry<Integer, Long> entry : dpt.entrySet()) {
+            buffer.putInt(entry.getKey()).putLong(entry.getValue());
+        }
+        return buffer.array();
+    }
+
+    /**
+     * 回收page中从offset开始的页尾空间
+     */
+    public static byte[] logTruncate(Page page, short offset) {
+        byte[] logType = {LOG_TYPE_TRUNCATE};
+        byte[] XID = Parser.longToByte(TransactionManager.SUPER_XID);
+        byte[] pn = Parser.intToByte(page.getPageNumber());
+        return ArrayUtil.concat(logType, XID, pn, Parser.shortToByte(offset));
+    }
+
     public static byte[] logInsert(long xid, Page page, byte[] raw) {
         byte[] logType = {LOG_TYPE_INSERT};
         byte[] XID = Parser.longToByte(xid);
@@ -5,6 +5,8 @@ import com.mxp.mdb.backend.dm.page.Page;
 import com.mxp.mdb.backend.utils.ArrayUtil;
 import com.mxp.mdb.backend.utils.Parser;
 
+import java.nio.ByteBuffer;
+
 /**
  * @author mxp
  * @date 2023/4/13 19:06
@@ -27,13 +29,82 @@ public interface DataItem {
     byte[] getOldRaw();
     SubArray getRaw();
 
+    /**
+     * ValidFlag中的标志位：数据非法
+     */
+    byte FLAG_INVALID = 1;
+
+    /**
+     * ValidFlag中的标志位：没有索引指向该数据
+     * 没有索引的表中的数据插入时即带有该标志，清理释放的数据从索引中删除后设置该标志
+     */
+    byte FLAG_UNINDEXED = 2;
+
     static byte[] wrapDataItemRaw(byte[] raw) {
-        byte[] valid = new byte[1];
+        return wrapDataItemRaw(raw, false);
+    }
+
+    /**
+     * @param unindexed 是否不会有索引指向该数据，见 FLAG_UNINDEXED
+     */
+    static byte[] wrapDataItemRaw(byte[] raw, boolean unindexed) {
+        byte[] valid = new byte[]{unindexed ? FLAG_UNINDEXED : 0};
         byte[] size = Parser.shortToByte((short) raw.length);
         return ArrayUtil.concat(valid, size, raw);
     }
 
     static void setDataItemRawInvalid(byte[] raw) {
-        raw[DataItemImpl.OFFSET_VALID] = 1;
+        setDataItemRawInvalid(raw, 0);
+    }
+
+    /**
+     * 将从start开始的DataItem标记为非法，保留其余标志
+     */
+    static void setDataItemRawInvalid(byte[] raw, int start) {
+        raw[start + DataItemImpl.OFFSET_VALID] |= FLAG_INVALID;
+    }
+
+    /**
+     * 将页面中从start开始的DataItem标记为非法，保留其余标志
+     */
+    static void setDataItemRawInvalid(ByteBuffer page, int start) {
+        int pos = start + DataItemImpl.OFFSET_VALID;
+        page.put(pos, (byte) (page.get(pos) | FLAG_INVALID));
+    }
+
+    /**
+     * 将页面中从start开始的DataItem标记为已释放：非法，且没有索引指向它
+     */
+    static void setDataItemRawFreed(ByteBuffer page, int start) {
+        page.put(start + DataItemImpl.OFFSET_VALID, (byte) (FLAG_INVALID | FLAG_UNINDEXED));
+    }
+
+    /**
+     * 页面中从start开始的DataItem是否合法
+     */
+    static boolean isDataItemRawValid(ByteBuffer page, int start) {
+        return (page.get(start + DataItemImpl.OFFSET_VALID) & FLAG_INVALID) == 0;
+    }
+
+    /**
+     * 页面中从start开始的DataItem是否已释放，已释放的数据在没有事务会访问它之后即可回收
+     * 被恢复撤销的插入也是非法的，但可能还有索引指向它，不算已释放；没有索引的表中被撤销的插入则算作已释放
+     */
+    static boolean isDataItemRawFreed(ByteBuffer page, int start) {
+        return page.get(start + DataItemImpl.OFFSET_VALID) == (FLAG_INVALID | FLAG_UNINDEXED);
+    }
+
+    /**
+     * 页面中从start开始的DataItem是否合法且没有索引指向它
+     */
+    static boolean isDataItemRawUnindexed(ByteBuffer page, int start) {
+        return page.get(start + DataItemImpl.OFFSET_VALID) == FLAG_UNINDEXED;
+    }
+
+    /**
+     * 页面中从start开始的DataItem的总长度
+     */
+    static int getDataItemRawLength(ByteBuffer page, int start) {
+        return DataItemImpl.OFFSET_DATA + page.getShort(start + DataItemImpl.OFFSET_SIZE);
     }
 }
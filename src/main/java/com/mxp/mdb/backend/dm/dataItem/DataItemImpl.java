@@ -3,16 +3,17 @@ package com.mxp.mdb.backend.dm.dataItem;
 import com.mxp.mdb.backend.common.SubArray;
 import com.mxp.mdb.backend.dm.DataManagerImpl;
 import com.mxp.mdb.backend.dm.page.Page;
+import com.mxp.mdb.backend.utils.BufferUtil;
 import com.mxp.mdb.backend.utils.Parser;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * DataItem 结构如下：
  * [ValidFlag] [DataSize] [Data]
- * ValidFlag 1字节，0为合法，1为非法
+ * ValidFlag 1字节，最低位为1时非法，第二位为1时没有索引指向该数据，见 DataItem.FLAG_UNINDEXED
  * DataSize  2字节，标识Data的长度
  *
  * @author mxp
@@ -25,6 +26,9 @@ public class DataItemImpl implements DataItem {
     static final int OFFSET_DATA = 3;
 
     private SubArray raw;
+    /**
+     * 修改前的数据，第一次修改时分配，只读的DataItem不需要
+     */
     private byte[] oldRaw;
     private Lock rLock;
     private Lock wLock;
@@ -44,7 +48,7 @@ public class DataItemImpl implements DataItem {
     }
 
     public boolean isValid() {
-        return raw.raw[raw.start + OFFSET_VALID] == 0;
+        return (raw.raw.get(raw.start + OFFSET_VALID) & DataItem.FLAG_INVALID) == 0;
     }
 
     /**
@@ -52,13 +56,13 @@ public class DataItemImpl implements DataItem {
      * @return
      */
     public static DataItem parseDateItem(Page page, short offset, DataManagerImpl dm) {
-        byte[] raw = page.getData();
+        ByteBuffer raw = page.getData();
         // 数据长度
-        short size = Parser.parseShort(Arrays.copyOfRange(raw, offset + DataItemImpl.OFFSET_SIZE, offset + DataItemImpl.OFFSET_DATA));
+        short size = raw.getShort(offset + DataItemImpl.OFFSET_SIZE);
         // DataItem长度
         short len = (short) (size + DataItemImpl.OFFSET_DATA);
         long uid = Parser.addressToUid(page.getPageNumber(), offset);
-        return new DataItemImpl(new SubArray(raw, offset, offset + len), new byte[len], dm, uid, page);
+        return new DataItemImpl(new SubArray(raw, offset, offset + len), null, dm, uid, page);
     }
 
     @Override
@@ -69,20 +73,32 @@ public class DataItemImpl implements DataItem {
     @Override
     public void before() {
         wLock.lock();
-        System.arraycopy(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
-        page.setDirty(true);
+        page.beforeModify();
+        if (oldRaw == null) {
+            oldRaw = new byte[raw.end - raw.start];
+        }
+        BufferUtil.get(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
     }
 
     @Override
     public void unBefore() {
-        System.arraycopy(oldRaw, 0, raw.raw, raw.start, oldRaw.length);
+        BufferUtil.put(raw.raw, raw.start, oldRaw, 0, oldRaw.length);
+        page.afterModify();
         wLock.unlock();
     }
 
+    /**
+     * 日志写入后才结束页面修改，保证后台刷盘写出的页面内容都已有日志
+     * @param xid
+     */
     @Override
     public void after(long xid) {
-        dm.logDataItem(xid, this);
-        wLock.unlock();
+        try {
+            dm.logDataItem(xid, this);
+        } finally {
+            page.afterModify();
+            wLock.unlock();
+        }
     }
 
     @Override
@@ -0,0 +1,212 @@
+package com.mxp.mdb.backend.dm.logger;
+
+import com.mxp.mdb.backend.utils.Panic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * 日志段文件
+ * 文件名为 m-db.log.[Base]，Base 为该段第一条日志的逻辑位置，日志的逻辑位置在所有段中连续
+ *
+ * 段文件格式为：
+ * [Magic] [Version] [Base] [Log1] [Log2] ... [LogN] [BadTail]
+ * Magic   4字节int
+ * Version 4字节int，日志的格式版本，决定日志校验和的算法
+ * Base    8字节long
+ * <p>
+ * 版本0为分段之前的单个日志文件 m-db.log，使用它的数据库的数据文件也是旧格式，打开时已被拒绝，不再读取。
+ */
+class LogSegment {
+
+    static final int MAGIC = 0x6D64624C;
+
+    /**
+     * 校验和为CRC32C
+     */
+    static final int VERSION_CRC32C = 1;
+
+    static final int CURRENT_VERSION = VERSION_CRC32C;
+
+    private static final int OFFSET_MAGIC = 0;
+    private static final int OFFSET_VERSION = OFFSET_MAGIC + 4;
+    private static final int OFFSET_BASE = OFFSET_VERSION + 4;
+    private static final int HEADER_SIZE = OFFSET_BASE + 8;
+
+    private static final String PREFIX = Logger.LOG_FILE_NAME + ".";
+
+    final long base;
+    private final File file;
+    private FileChannel fc;
+    private int version;
+
+    LogSegment(File dir, long base) {
+        this.base = base;
+        this.file = new File(dir, PREFIX + String.format("%020d", base));
+        this.version = CURRENT_VERSION;
+    }
+
+    int version() {
+        return version;
+    }
+
+    /**
+     * 从文件名解析段的Base
+     * @param name
+     * @return 不是段文件时返回-1
+     */
+    static long parseBase(String name) {
+        if (!name.startsWith(PREFIX)) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(name.substring(PREFIX.length()));
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    boolean isOpen() {
+        return fc != null;
+    }
+
+    /**
+     * 创建段文件并写入文件头，文件头和目录项都刷盘后返回
+     */
+    void create() {
+        try {
+            fc = new RandomAccessFile(file, "rw").getChannel();
+            fc.truncate(0);
+            version = CURRENT_VERSION;
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(OFFSET_MAGIC, MAGIC);
+            header.putInt(OFFSET_VERSION, CURRENT_VERSION);
+            header.putLong(OFFSET_BASE, base);
+            writeFully(header, 0);
+            fc.force(true);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        forceDirectory();
+    }
+
+    /**
+     * 部分系统不支持对目录刷盘，此时忽略
+     */
+    private void forceDirectory() {
+        try (FileChannel dir = FileChannel.open(file.getAbsoluteFile().getParentFile().toPath(), StandardOpenOption.READ)) {
+            dir.force(true);
+        } catch (IOException ignored) {
+        }
+    }
+
+    void open() {
+        try {
+            fc = new RandomAccessFile(file, "rw").getChannel();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 读取文件头中的版本，文件头不完整或与文件名不一致时返回false
+     */
+    boolean checkHeader() {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        read(header, -HEADER_SIZE);
+        if (header.hasRemaining() || header.getInt(OFFSET_MAGIC) != MAGIC || header.getLong(OFFSET_BASE) != base) {
+            return false;
+        }
+        version = header.getInt(OFFSET_VERSION);
+        return true;
+    }
+
+    /**
+     * 段内日志的长度
+     */
+    long length() {
+        try {
+            return Math.max(fc.size() - HEADER_SIZE, 0);
+        } catch (IOException e) {
+            Panic.panic(e);
+            return 0;
+        }
+    }
+
+    /**
+     * 在段内offset处写入，offset为相对Base的位置
+     */
+    void write(ByteBuffer buffer, long offset) {
+        try {
+            writeFully(buffer, HEADER_SIZE + offset);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += fc.write(buffer, position);
+        }
+    }
+
+    /**
+     * 从段内offset处读满buffer，到达文件末尾时buffer可能未读满
+     */
+    void read(ByteBuffer buffer, long offset) {
+        long position = HEADER_SIZE + offset;
+        try {
+            while (buffer.hasRemaining()) {
+                int n = fc.read(buffer, position);
+                if (n < 0) {
+                    break;
+                }
+                position += n;
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void force() {
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 截断到段内length处
+     */
+    void truncate(long length) {
+        try {
+            fc.truncate(HEADER_SIZE + length);
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void close() {
+        if (fc == null) {
+            return;
+        }
+        try {
+            fc.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    void delete() {
+        close();
+        if (!file.delete()) {
+            Panic.panic(new IOException("Cannot delete " + file));
+        }
+    }
+}
@@ -8,10 +8,39 @@ public interface Logger {
 
     String LOG_FILE_NAME = "m-db.log";
 
-    void log(byte[] data);
+    /**
+     * 写入一条日志，返回时日志已持久化
+     * @param data
+     * @return 日志的位置
+     */
+    long log(byte[] data);
     void truncate(long x) throws Exception;
     byte[] next();
     void rewind();
+
+    /**
+     * 将读取指针移动到position处
+     * @param position
+     */
+    void rewind(long position);
+
+    /**
+     * 读取指针的位置，即next将返回的日志的位置
+     * @return
+     */
+    long position();
+
+    /**
+     * 日志末尾位置，即下一条日志的写入位置
+     * @return
+     */
+    long tail();
+
+    /**
+     * 删除position之前不再需要的日志
+     * @param position
+     */
+    void removeBefore(long position);
     void close();
 
 }
@@ -1,187 +1,298 @@
 package com.mxp.mdb.backend.dm.logger;
 
-import com.mxp.mdb.backend.utils.ArrayUtil;
 import com.mxp.mdb.backend.utils.Panic;
-import com.mxp.mdb.backend.utils.Parser;
 import com.mxp.mdb.common.error.Error;
 
 import java.io.File;
-import java.io.FileNotFoundException;
-import java.io.IOException;
-import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
-import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
 
 /**
  * 日志文件读写
  *
- * 日志文件标准格式为：
- * [XChecksum] [Log1] [Log2] ... [LogN] [BadTail]
- * XChecksum 为后续所有日志计算的Checksum，int类型
+ * 日志分为多个段文件，见 LogSegment，日志的位置是在所有段中连续的逻辑位置。
+ * 当前段写满 SEGMENT_SIZE 后新日志写入新的段，checkpoint之后不再需要的段可以整个删除。
  *
  * 每条正确日志的格式为：
  * [Size] [Checksum] [Data]
  * Size 4字节int 标识Data长度
- * Checksum 4字节int
+ * Checksum 4字节int，按段的版本计算，当前版本为Data的CRC32C，直接在日志所在的数组上计算，不拷贝Data
+ * <p>
+ * 组提交：并发写入的日志先追加到内存缓冲区，由日志刷盘线程整批写入段文件并刷盘，调用者只等待自己的日志所在的批次持久化。
+ * 刷盘线程在前一个段刷盘之后才创建下一个段，所以只有最后一个段可能有未写完的日志，
+ * 打开时只需校验最后一个段并截断到最后一条正确日志的末尾，被截断的日志都还没有返回给调用者。
  *
  * @author mxp
  * @date 2023/4/12 21:33
  */
 public class LoggerImpl implements Logger {
 
-    private static final int SEED = 16191;
-
-    private static final int OFFSET_X_CHECKSUM_LEN = 4;
-
     private static final int OFFSET_SIZE = 0;
     private static final int OFFSET_CHECKSUM = OFFSET_SIZE + 4;
     private static final int OFFSET_DATA = OFFSET_CHECKSUM + 4;
 
-    private RandomAccessFile file;
-    private FileChannel fc;
+    /**
+     * 每个段最多16MB，单条日志超过时独占一个段
+     */
+    private static final long SEGMENT_SIZE = 1 << 24;
+
+    private static final int BUFFER_INIT_SIZE = 1 << 16;
+
+    /**
+     * 第一条日志的位置
+     * PageLSN、recLSN和checkpoint的位置都以0表示没有日志，位置0的日志会被当作没有，崩溃后不会被重做
+     */
+    private static final long FIRST_POSITION = 1;
+
+    private File dir;
+
+    /**
+     * 所有段，按Base排序
+     */
+    private ConcurrentSkipListMap<Long, LogSegment> segments;
+
     private Lock lock;
 
     /**
-     * 当前日志指针的位置
+     * 有日志等待写入
      */
-    private long position;
+    private Condition pendingCond;
 
     /**
-     * 初始化时记录，log操作不更新
+     * 有批次完成持久化
      */
-    private long fileSize;
+    private Condition durableCond;
 
-    private int xChecksum;
+    /**
+     * 等待写入的日志，pending[0, pendingSize)对应日志的[writtenSize, fileSize)
+     */
+    private byte[] pending;
+    private int pendingSize;
 
-    public LoggerImpl(RandomAccessFile file, FileChannel fc) {
-        this.file = file;
-        this.fc = fc;
-        lock = new ReentrantLock();
-    }
+    /**
+     * 刷盘线程写入时使用的另一块缓冲区，写入完成后换回
+     */
+    private byte[] spare;
 
-    public LoggerImpl(RandomAccessFile file, FileChannel fc, int xChecksum) {
-        this(file, fc);
-        this.xChecksum = xChecksum;
-        position = OFFSET_X_CHECKSUM_LEN;
-    }
+    /**
+     * 当前读取日志指针的位置
+     */
+    private long position;
 
-    private void init() {
-        long size = 0;
-        try {
-            size = file.length();
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
+    /**
+     * 日志末尾位置，新日志从这里写入
+     */
+    private long fileSize;
 
-        if (size < OFFSET_X_CHECKSUM_LEN) {
-            Panic.panic(Error.BadLogFileException);
-        }
+    /**
+     * 已持久化的日志末尾位置
+     */
+    private long writtenSize;
 
-        ByteBuffer raw = ByteBuffer.allocate(4);
-        try {
-            fc.position(0);
-            fc.read(raw);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        this.xChecksum = Parser.parseInt(raw.array());
-        this.fileSize = size;
+    /**
+     * 最后一个段的Base
+     */
+    private long lastBase;
+
+    private Thread flusher;
+    private boolean closed;
 
-        checkAndRemoveTail();
+    private LoggerImpl(File dir, ConcurrentSkipListMap<Long, LogSegment> segments) {
+        this.dir = dir;
+        this.segments = segments;
+        lock = new ReentrantLock();
+        pendingCond = lock.newCondition();
+        durableCond = lock.newCondition();
+        pending = new byte[BUFFER_INIT_SIZE];
+        spare = new byte[BUFFER_INIT_SIZE];
+        lastBase = segments.lastKey();
     }
 
-    private void checkAndRemoveTail() {
-        rewind();
-        int xCheck = 0;
-        byte[] log;
-        while ((log = internNext()) != null) {
-            xCheck = calCheckSum(xCheck, Arrays.copyOfRange(log, OFFSET_DATA, log.length));
-        }
+    private void startFlusher() {
+        writtenSize = fileSize;
+        flusher = new Thread(this::flushLoop, "log-flusher");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
 
-        if (xCheck != xChecksum) {
-            Panic.panic(Error.BadLogFileException);
+    /**
+     * 只校验最后一个段，截断其中最后一条正确日志之后的内容
+     */
+    private void checkAndRemoveTail() {
+        LogSegment last = segments.lastEntry().getValue();
+        writtenSize = lastBase + last.length();
+        position = lastBase;
+        while (internNext() != null) {
         }
 
         try {
-            // 截断文件到正常日志的末尾
             truncate(position);
-            file.seek(position);
         } catch (Exception e) {
             Panic.panic(e);
         }
-
         rewind();
     }
 
     /**
-     * 计算校验和
-     * @param xCheck
-     * @param log
+     * 计算data的校验和
+     * @param version 日志所在段的版本
+     * @param data
      * @return
      */
-    private int calCheckSum(int xCheck, byte[] log) {
-        for (byte b : log) {
-            xCheck = xCheck * SEED + b;
+    private static int calCheckSum(int version, byte[] data) {
+        if (version == LogSegment.VERSION_CRC32C) {
+            CRC32C crc = new CRC32C();
+            crc.update(data, 0, data.length);
+            return (int) crc.getValue();
         }
-        return xCheck;
+        Panic.panic(Error.BadLogFileException);
+        return 0;
     }
 
+    /**
+     * 追加日志到缓冲区，等待其所在批次持久化后返回
+     * 当前段放不下时，日志从新的段开始
+     * @param data
+     * @return 日志的位置
+     */
     @Override
-    public void log(byte[] data) {
-        byte[] raw = wrapLog(data);
-        ByteBuffer log = ByteBuffer.wrap(raw);
+    public long log(byte[] data) {
+        int checksum = calCheckSum(LogSegment.CURRENT_VERSION, data);
+        int length = OFFSET_DATA + data.length;
         lock.lock();
         try {
-            fc.position(position);
-            fc.write(log);
-        } catch (IOException e) {
-            Panic.panic(e);
+            if (fileSize > lastBase && fileSize - lastBase + length > SEGMENT_SIZE) {
+                lastBase = fileSize;
+                segments.put(lastBase, new LogSegment(dir, lastBase));
+            }
+            if (pendingSize + length > pending.length) {
+                pending = Arrays.copyOf(pending, Math.max(pending.length << 1, pendingSize + length));
+            }
+            // [Size] [Checksum] [Data] 直接写入缓冲区
+            ByteBuffer log = ByteBuffer.wrap(pending, pendingSize, length);
+            log.putInt(data.length).putInt(checksum).put(data);
+            pendingSize += length;
+            long start = fileSize;
+            fileSize += length;
+            pendingCond.signal();
+            while (writtenSize < start + length) {
+                durableCond.awaitUninterruptibly();
+            }
+            return start;
         } finally {
             lock.unlock();
         }
-        position += raw.length;
-        updateXCheckSum(data);
     }
 
-    private void updateXCheckSum(byte[] data) {
-        this.xChecksum = (int) calCheckSum(this.xChecksum, data);
-        try {
-            fc.position(0);
-            fc.write(ByteBuffer.wrap(Parser.intToByte(this.xChecksum)));
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+    /**
+     * 日志刷盘线程：取走缓冲区中的全部日志，按段写入并刷盘
+     * 写入期间新的日志追加到另一块缓冲区
+     */
+    private void flushLoop() {
+        while (true) {
+            byte[] batch;
+            int length;
+            long offset;
+            lock.lock();
+            try {
+                while (pendingSize == 0 && !closed) {
+                    pendingCond.awaitUninterruptibly();
+                }
+                if (pendingSize == 0) {
+                    return;
+                }
+                batch = pending;
+                length = pendingSize;
+                pending = spare;
+                pendingSize = 0;
+                offset = writtenSize;
+            } finally {
+                lock.unlock();
+            }
+
+            long end = offset + length;
+            int written = 0;
+            while (offset < end) {
+                LogSegment segment = segments.floorEntry(offset).getValue();
+                Long next = segments.higherKey(segment.base);
+                long partEnd = next == null ? end : Math.min(end, next);
+                if (!segment.isOpen()) {
+                    segment.create();
+                }
+                int part = (int) (partEnd - offset);
+                segment.write(ByteBuffer.wrap(batch, written, part), offset - segment.base);
+                segment.force();
+                written += part;
+                offset = partEnd;
+            }
+
+            lock.lock();
+            try {
+                writtenSize = end;
+                spare = batch;
+                durableCond.signalAll();
+            } finally {
+                lock.unlock();
+            }
         }
     }
 
-    private byte[] wrapLog(byte[] data) {
-        byte[] size = Parser.intToByte(data.length);
-        byte[] checkSum = Parser.intToByte(calCheckSum(0, data));
-        return ArrayUtil.concat(size, checkSum, data);
+    /**
+     * 截断x之后的日志，删除Base在x之后的段
+     * @param x
+     * @throws Exception
+     */
+    @Override
+    public void truncate(long x) throws Exception {
+        lock.lock();
+        try {
+            Map.Entry<Long, LogSegment> last;
+            while ((last = segments.lastEntry()).getKey() > x && segments.size() > 1) {
+                segments.remove(last.getKey());
+                last.getValue().delete();
+            }
+            last.getValue().truncate(x - last.getKey());
+            lastBase = last.getKey();
+            fileSize = writtenSize = x;
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * 删除所有日志都在position之前的段，最后一个段总是保留
+     * @param position
+     */
     @Override
-    public void truncate(long x) throws Exception {
+    public void removeBefore(long position) {
         lock.lock();
         try {
-            fc.truncate(x);
+            position = Math.min(position, writtenSize);
         } finally {
             lock.unlock();
         }
+        while (true) {
+            Map.Entry<Long, LogSegment> first = segments.firstEntry();
+            Long next = segments.higherKey(first.getKey());
+            if (next == null || next > position) {
+                break;
+            }
+            segments.remove(first.getKey());
+            first.getValue().delete();
+        }
     }
 
     @Override
     public byte[] next() {
         lock.lock();
         try {
-            byte[] log = internNext();
-            if (log == null) {
-                return null;
-            }
-            return Arrays.copyOfRange(log, OFFSET_DATA, log.length);
+            return internNext();
         } finally {
             lock.unlock();
         }
@@ -193,118 +304,167 @@ public class LoggerImpl implements Logger {
      * Size 4字节int 标识Data长度
      * Checksum 4字节int
      *
-     * @return
+     * 当前段读完后从下一个段的开头继续
+     * @return 日志的Data
      */
     private byte[] internNext() {
-        if (position + OFFSET_DATA > fileSize) {
-            return null;
+        while (true) {
+            Map.Entry<Long, LogSegment> entry = segments.floorEntry(position);
+            if (entry == null) {
+                return null;
+            }
+            LogSegment segment = entry.getValue();
+            Long next = segments.higherKey(segment.base);
+            long end = next == null ? writtenSize : next;
+            byte[] data = readLog(segment, end);
+            if (data != null) {
+                position += OFFSET_DATA + data.length;
+                return data;
+            }
+            if (next == null) {
+                return null;
+            }
+            position = next;
         }
-        // [Size]
-        ByteBuffer buffer = ByteBuffer.allocate(OFFSET_CHECKSUM);
-        try {
-            fc.position(position);
-            fc.read(buffer);
-        } catch (IOException e) {
-            Panic.panic(e);
+    }
+
+    /**
+     * 读取并校验position处的日志，Data直接读入返回的数组
+     * @param end 该段中日志的末尾
+     * @return 没有正确的日志时返回null
+     */
+    private byte[] readLog(LogSegment segment, long end) {
+        if (position + OFFSET_DATA > end) {
+            return null;
         }
+        // [Size] [Checksum]
+        ByteBuffer header = ByteBuffer.allocate(OFFSET_DATA);
+        segment.read(header, position - segment.base);
         // 数据长度
-        int size = Parser.parseInt(buffer.array());
-        if (position + size + OFFSET_DATA > fileSize) {
+        int size = header.getInt(OFFSET_SIZE);
+        if (size < 0 || position + OFFSET_DATA + size > end) {
             return null;
         }
 
-        buffer = ByteBuffer.allocate(OFFSET_DATA + size);
-        try {
-            fc.position(position);
-            fc.read(buffer);
-        } catch (IOException e) {
-            Panic.panic(e);
+        // [Data]
+        byte[] data = new byte[size];
+        ByteBuffer buffer = ByteBuffer.wrap(data);
+        segment.read(buffer, position - segment.base + OFFSET_DATA);
+        if (buffer.hasRemaining()) {
+            return null;
         }
-
-        // [Size] [Checksum] [Data]
-        byte[] log = buffer.array();
-        int checkSum1 = calCheckSum(0, Arrays.copyOfRange(log, OFFSET_DATA, log.length));
-        // [Checksum]
-        int checkSum2 = Parser.parseInt(Arrays.copyOfRange(log, OFFSET_CHECKSUM, OFFSET_DATA));
-        if (checkSum1 != checkSum2) {
+        if (calCheckSum(segment.version(), data) != header.getInt(OFFSET_CHECKSUM)) {
             return null;
         }
-        position += log.length;
-        return log;
+        return data;
     }
 
     @Override
     public void rewind() {
-        position = OFFSET_X_CHECKSUM_LEN;
+        position = segments.firstKey();
+    }
+
+    @Override
+    public void rewind(long position) {
+        this.position = Math.max(position, segments.firstKey());
+    }
+
+    @Override
+    public long position() {
+        return position;
+    }
+
+    @Override
+    public long tail() {
+        lock.lock();
+        try {
+            return fileSize;
+        } finally {
+            lock.unlock();
+        }
     }
 
+    /**
+     * 等待缓冲区中的日志全部持久化后关闭
+     */
     @Override
     public void close() {
+        lock.lock();
         try {
-            fc.close();
-            file.close();
-        } catch (IOException e) {
-            Panic.panic(e);
+            closed = true;
+            pendingCond.signal();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            flusher.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        for (LogSegment segment : segments.values()) {
+            segment.close();
         }
     }
 
-    public static Logger create(String path) {
-        File file = new File(path + File.separator + LOG_FILE_NAME);
-        if (!file.exists()) {
-            try {
-                if (!file.createNewFile()) {
-                    Panic.panic(Error.FileNotExistsException);
+    /**
+     * 列出目录中的所有段
+     */
+    private static ConcurrentSkipListMap<Long, LogSegment> listSegments(File dir) {
+        ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+        String[] names = dir.list();
+        if (names != null) {
+            for (String name : names) {
+                long base = LogSegment.parseBase(name);
+                if (base >= 0) {
+                    segments.put(base, new LogSegment(dir, base));
                 }
-            } catch (IOException e) {
-                Panic.panic(e);
             }
         }
+        return segments;
+    }
 
-        if (!file.canRead() || !file.canWrite()) {
+    public static Logger create(String path) {
+        File dir = new File(path);
+        if (!dir.exists() || !dir.canRead() || !dir.canWrite()) {
             Panic.panic(Error.FileCannotRWException);
         }
 
-        RandomAccessFile raf = null;
-        FileChannel fc = null;
-        try {
-            raf = new RandomAccessFile(file, "rw");
-            fc = raf.getChannel();
-        } catch (FileNotFoundException e) {
-            Panic.panic(e);
-        }
-
-        ByteBuffer buffer = ByteBuffer.wrap(Parser.intToByte(0));
-        try {
-            fc.position(0);
-            fc.write(buffer);
-            fc.force(false);
-        } catch (IOException e) {
-            Panic.panic(e);
+        // 删除已有的日志，从 FIRST_POSITION 开始
+        for (LogSegment segment : listSegments(dir).values()) {
+            segment.delete();
         }
-        return new LoggerImpl(raf, fc, 0);
+        LogSegment first = new LogSegment(dir, FIRST_POSITION);
+        first.create();
+        ConcurrentSkipListMap<Long, LogSegment> segments = new ConcurrentSkipListMap<>();
+        segments.put(first.base, first);
+
+        LoggerImpl lg = new LoggerImpl(dir, segments);
+        lg.fileSize = FIRST_POSITION;
+        lg.startFlusher();
+        return lg;
     }
 
     public static Logger open(String path) {
-        File file = new File(path + File.separator + LOG_FILE_NAME);
-        if (!file.exists()) {
+        File dir = new File(path);
+        ConcurrentSkipListMap<Long, LogSegment> segments = listSegments(dir);
+        if (segments.isEmpty()) {
             Panic.panic(Error.FileNotExistsException);
         }
-
-        if (!file.canWrite() || !file.canRead()) {
-            Panic.panic(Error.FileCannotRWException);
-        }
-
-        FileChannel fc = null;
-        RandomAccessFile raf = null;
-        try {
-            raf = new RandomAccessFile(file, "rw");
-            fc = raf.getChannel();
-        } catch (IOException e) {
-            Panic.panic(e);
+        for (LogSegment segment : segments.values()) {
+            segment.open();
+            if (segment.checkHeader()) {
+                continue;
+            }
+            if (segment != segments.lastEntry().getValue()) {
+                Panic.panic(Error.BadLogFileException);
+            }
+            // 段文件在文件头刷盘前崩溃，其中不会有已持久化的日志
+            segment.create();
         }
 
-        LoggerImpl lg = new LoggerImpl(raf, fc);
-        lg.init();
+        LoggerImpl lg = new LoggerImpl(dir, segments);
+        lg.checkAndRemoveTail();
+        lg.startFlusher();
         return lg;
     }
 }
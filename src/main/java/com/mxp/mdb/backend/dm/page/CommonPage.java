@@ -1,15 +1,16 @@
 package com.mxp.mdb.backend.dm.page;
 
 import com.mxp.mdb.backend.dm.pageCache.PageCache;
-import com.mxp.mdb.backend.utils.Parser;
+import com.mxp.mdb.backend.utils.BufferUtil;
 
-import java.util.Arrays;
+import java.nio.ByteBuffer;
 
 /**
  * 管理普通页
  * 普通页结构
- * [FreeSpaceOffset] [Data]
+ * [FreeSpaceOffset] [PageLSN] [Data]
  * FreeSpaceOffset: 2字节 空闲位置开始偏移
+ * PageLSN: 8字节 页面已包含的最后一条日志的位置，恢复时位置不大于PageLSN的日志无需重做
  *
  * @author mxp
  * @date 2023/4/12 20:39
@@ -17,13 +18,14 @@ import java.util.Arrays;
 public class CommonPage {
 
     private static final short OFFSET_FREE = 0;
-    private static final short OFFSET_DATA = 2;
+    private static final short OFFSET_LSN = 2;
+    public static final short OFFSET_DATA = OFFSET_LSN + 8;
 
     public static final int MAX_FREE_SPACE = PageCache.PAGE_SIZE - OFFSET_DATA;
 
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setFreeSpaceOffset(raw, OFFSET_DATA);
+        setFreeSpaceOffset(ByteBuffer.wrap(raw), OFFSET_DATA);
         return raw;
     }
 
@@ -32,8 +34,8 @@ public class CommonPage {
      * @param raw
      * @param offsetData
      */
-    private static void setFreeSpaceOffset(byte[] raw, short offsetData) {
-        System.arraycopy(Parser.shortToByte(offsetData), 0, raw, OFFSET_FREE, OFFSET_DATA);
+    private static void setFreeSpaceOffset(ByteBuffer raw, short offsetData) {
+        raw.putShort(OFFSET_FREE, offsetData);
     }
 
     /**
@@ -45,8 +47,8 @@ public class CommonPage {
         return getFreeSpaceOffset(page.getData());
     }
 
-    private static short getFreeSpaceOffset(byte[] raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw, OFFSET_FREE, OFFSET_DATA));
+    private static short getFreeSpaceOffset(ByteBuffer raw) {
+        return raw.getShort(OFFSET_FREE);
     }
 
     /**
@@ -58,12 +60,47 @@ public class CommonPage {
      */
     public static short insert(Page page, byte[] raw) {
         short freeSpaceOffset = getFreeSpaceOffset(page);
-        System.arraycopy(raw, 0, page.getData(), freeSpaceOffset, raw.length);
+        BufferUtil.put(page.getData(), freeSpaceOffset, raw);
         setFreeSpaceOffset(page.getData(), (short) (freeSpaceOffset + raw.length));
         page.setDirty(true);
         return freeSpaceOffset;
     }
 
+    /**
+     * 将空闲位置前移到offset，回收页尾的空间，重做时也直接调用
+     * 调用方需保证offset之后的数据不会再被访问
+     * @param page
+     * @param offset
+     */
+    public static void truncate(Page page, short offset) {
+        setFreeSpaceOffset(page.getData(), offset);
+        page.setDirty(true);
+    }
+
+    /**
+     * 页面已包含的最后一条日志的位置
+     * @param page
+     * @return
+     */
+    public static long getPageLSN(Page page) {
+        return page.getData().getLong(OFFSET_LSN);
+    }
+
+    /**
+     * 修改页面后记录该修改的日志位置，须在页面修改结束前调用
+     * 同一页面上不同数据的修改可能并发写日志，写日志和记录位置的顺序不一定相同，所以PageLSN只增不减
+     * @param page
+     * @param lsn
+     */
+    public static void setPageLSN(Page page, long lsn) {
+        synchronized (page) {
+            if (lsn > getPageLSN(page)) {
+                page.getData().putLong(OFFSET_LSN, lsn);
+            }
+        }
+        page.markLogged(lsn);
+    }
+
     /**
      * 获得页面空闲空间大小
      * @param page
@@ -78,13 +115,20 @@ public class CommonPage {
      * 将raw插入page中的offset位置，并将page的offset设置为较大的offset
      */
     public static void recoverInsert(Page page, byte[] raw, short offset) {
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        recoverInsert(page, raw, 0, raw.length, offset);
+    }
+
+    /**
+     * 将raw[from, from + length)插入page中的offset位置，并将page的offset设置为较大的offset
+     */
+    public static void recoverInsert(Page page, byte[] raw, int from, int length, short offset) {
+        BufferUtil.put(page.getData(), offset, raw, from, length);
         short curOffset = getFreeSpaceOffset(page);
-        page.setDirty(true);
 
-        if (curOffset < (curOffset = (short) (raw.length + offset))) {
+        if (curOffset < (curOffset = (short) (length + offset))) {
             setFreeSpaceOffset(page.getData(), curOffset);
         }
+        page.setDirty(true);
     }
 
     /**
@@ -94,7 +138,14 @@ public class CommonPage {
      * @param offset
      */
     public static void recoverUpdate(Page page, byte[] raw, short offset) {
-        System.arraycopy(raw, 0, page.getData(), offset, raw.length);
+        recoverUpdate(page, raw, 0, raw.length, offset);
+    }
+
+    /**
+     * 将raw[from, from + length)写入page中的offset位置
+     */
+    public static void recoverUpdate(Page page, byte[] raw, int from, int length, short offset) {
+        BufferUtil.put(page.getData(), offset, raw, from, length);
         page.setDirty(true);
     }
 }
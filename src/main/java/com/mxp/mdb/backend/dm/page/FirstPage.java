@@ -1,8 +1,10 @@
 package com.mxp.mdb.backend.dm.page;
 
 import com.mxp.mdb.backend.dm.pageCache.PageCache;
+import com.mxp.mdb.backend.utils.BufferUtil;
 import com.mxp.mdb.backend.utils.RandomUtil;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 
 /**
@@ -11,6 +13,13 @@ import java.util.Arrays;
  * db启动时给100~107字节处填入一个随机字节，db关闭时将其拷贝到108~115字节
  * 用于判断上一次数据库是否正常关闭
  * 如果是异常关闭，就需要执行数据的恢复流程。
+ * <p>
+ * Checkpoint
+ * 116~123字节记录最近一次checkpoint日志的位置，124~127字节记录checkpoint时的页数
+ * 恢复时从该日志记录的活跃事务表和脏页表需要的最早的日志开始
+ * <p>
+ * Format
+ * 128~131字节记录数据页的格式版本，旧版本的普通页没有PageLSN，不能再打开
  *
  * @author mxp
  * @date 2023/4/12 20:22
@@ -19,39 +28,92 @@ public class FirstPage {
 
     private static final int VALID_CHECK_OFFSET = 100;
     private static final int VALID_CHECK_LEN = 8;
+    private static final int CHECKPOINT_OFFSET = VALID_CHECK_OFFSET + (VALID_CHECK_LEN << 1);
+    private static final int CHECKPOINT_PAGE_NO_OFFSET = CHECKPOINT_OFFSET + 8;
+    private static final int FORMAT_OFFSET = CHECKPOINT_PAGE_NO_OFFSET + 4;
+
+    /**
+     * 普通页带有PageLSN的格式
+     */
+    private static final int FORMAT_PAGE_LSN = 1;
 
     public static byte[] initRaw() {
         byte[] raw = new byte[PageCache.PAGE_SIZE];
-        setValidCheckOpen(raw);
+        ByteBuffer buffer = ByteBuffer.wrap(raw);
+        setValidCheckOpen(buffer);
+        buffer.putInt(FORMAT_OFFSET, FORMAT_PAGE_LSN);
         return raw;
     }
 
     public static void setValidCheckOpen(Page page) {
-        page.setDirty(true);
-        setValidCheckOpen(page.getData());
+        page.beforeModify();
+        try {
+            setValidCheckOpen(page.getData());
+        } finally {
+            page.afterModify();
+        }
     }
 
-    private static void setValidCheckOpen(byte[] raw) {
-        System.arraycopy(RandomUtil.randomBytes(VALID_CHECK_LEN), 0, raw, VALID_CHECK_OFFSET, VALID_CHECK_LEN);
+    private static void setValidCheckOpen(ByteBuffer raw) {
+        BufferUtil.put(raw, VALID_CHECK_OFFSET, RandomUtil.randomBytes(VALID_CHECK_LEN));
     }
 
     public static void setValidCheckClose(Page page) {
-        page.setDirty(true);
-        setValidCheckClose(page.getData());
+        page.beforeModify();
+        try {
+            setValidCheckClose(page.getData());
+        } finally {
+            page.afterModify();
+        }
     }
 
-    private static void setValidCheckClose(byte[] raw) {
-        System.arraycopy(raw, VALID_CHECK_OFFSET, raw, VALID_CHECK_LEN + VALID_CHECK_OFFSET, VALID_CHECK_LEN);
+    private static void setValidCheckClose(ByteBuffer raw) {
+        BufferUtil.copy(raw, VALID_CHECK_OFFSET, raw, VALID_CHECK_LEN + VALID_CHECK_OFFSET, VALID_CHECK_LEN);
     }
 
     public static boolean validCheckFirstPage(Page page) {
         return validCheckFirstPage(page.getData());
     }
 
-    private static boolean validCheckFirstPage(byte[] raw) {
+    private static boolean validCheckFirstPage(ByteBuffer raw) {
         return Arrays.equals(
-                Arrays.copyOfRange(raw, VALID_CHECK_OFFSET, VALID_CHECK_OFFSET + VALID_CHECK_LEN),
-                Arrays.copyOfRange(raw, VALID_CHECK_OFFSET + VALID_CHECK_LEN, VALID_CHECK_OFFSET + (VALID_CHECK_LEN << 1))
+                BufferUtil.copyOfRange(raw, VALID_CHECK_OFFSET, VALID_CHECK_OFFSET + VALID_CHECK_LEN),
+                BufferUtil.copyOfRange(raw, VALID_CHECK_OFFSET + VALID_CHECK_LEN, VALID_CHECK_OFFSET + (VALID_CHECK_LEN << 1))
         );
     }
+
+    /**
+     * 记录checkpoint
+     * @param page
+     * @param position checkpoint日志的位置
+     * @param pageNumber checkpoint时的页数
+     */
+    public static void setCheckpoint(Page page, long position, int pageNumber) {
+        page.beforeModify();
+        try {
+            ByteBuffer raw = page.getData();
+            raw.putLong(CHECKPOINT_OFFSET, position);
+            raw.putInt(CHECKPOINT_PAGE_NO_OFFSET, pageNumber);
+        } finally {
+            page.afterModify();
+        }
+    }
+
+    /**
+     * 最近一次checkpoint日志的位置，没有checkpoint时为0
+     */
+    public static long getCheckpointPosition(Page page) {
+        return page.getData().getLong(CHECKPOINT_OFFSET);
+    }
+
+    public static int getCheckpointPageNumber(Page page) {
+        return page.getData().getInt(CHECKPOINT_PAGE_NO_OFFSET);
+    }
+
+    /**
+     * 数据页格式是否为当前版本
+     */
+    public static boolean checkFormat(Page page) {
+        return page.getData().getInt(FORMAT_OFFSET) == FORMAT_PAGE_LSN;
+    }
 }
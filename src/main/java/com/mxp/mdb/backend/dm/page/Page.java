@@ -1,6 +1,11 @@
 package com.mxp.mdb.backend.dm.page;
 
+import java.nio.ByteBuffer;
+
 /**
+ * 页面内容以ByteBuffer的形式提供，使用者只能按绝对位置读写，
+ * 底层可以是堆内数组，也可以是文件映射的一段
+ *
  * @author mxp
  * @date 2023/4/12 18:22
  */
@@ -11,5 +16,33 @@ public interface Page {
     void setDirty(boolean dirty);
     boolean isDirty();
     int getPageNumber();
-    byte[] getData();
+    ByteBuffer getData();
+
+    /**
+     * 开始修改页面内容，修改期间后台刷盘不会写出该页
+     */
+    void beforeModify();
+
+    /**
+     * 结束修改并将页面标记为脏页
+     */
+    void afterModify();
+
+    /**
+     * 页面为脏页且没有进行中的修改时，清除脏标记并返回页面内容的一致拷贝，否则返回null
+     * 调用方需持有页面锁
+     */
+    byte[] snapshot();
+
+    /**
+     * 页面上的修改写入日志后调用，记录页面变脏以来最早的日志位置
+     * @param lsn
+     */
+    void markLogged(long lsn);
+
+    /**
+     * 等待进行中的修改结束后，返回页面变脏以来最早的日志位置，页面内容都已写出时返回0
+     * 调用方需持有页面锁
+     */
+    long getRecLSN();
 }
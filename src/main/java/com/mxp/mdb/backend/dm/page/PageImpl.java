@@ -2,7 +2,11 @@ package com.mxp.mdb.backend.dm.page;
 
 
 import com.mxp.mdb.backend.dm.pageCache.PageCache;
+import com.mxp.mdb.backend.utils.BufferUtil;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -20,21 +24,42 @@ public class PageImpl implements Page {
     /**
      * 该页存放的数据
      */
-    private byte[] data;
+    private ByteBuffer data;
 
     /**
      * 是否为脏页
      */
-    private boolean dirty;
+    private volatile boolean dirty;
+
+    /**
+     * 页面锁，保证同一页面的写回互斥
+     */
     private final Lock lock;
 
+    /**
+     * 进行中的修改个数
+     */
+    private final AtomicInteger modifying;
+
+    /**
+     * 修改的开始和结束都会使其递增，用于校验拷贝期间页面未被修改
+     */
+    private final AtomicLong modCount;
+
+    /**
+     * 页面变脏以来最早的日志位置，成功拷贝出写回的内容后清零
+     */
+    private long recLSN;
+
     private PageCache pageCache;
 
-    public PageImpl(int pageNumber, byte[] data, PageCache pageCache) {
+    public PageImpl(int pageNumber, ByteBuffer data, PageCache pageCache) {
         this.pageNumber = pageNumber;
         this.data = data;
         this.pageCache = pageCache;
         lock = new ReentrantLock();
+        modifying = new AtomicInteger(0);
+        modCount = new AtomicLong(0);
     }
 
     @Override
@@ -68,7 +93,56 @@ public class PageImpl implements Page {
     }
 
     @Override
-    public byte[] getData() {
+    public ByteBuffer getData() {
         return data;
     }
+
+    @Override
+    public void beforeModify() {
+        modifying.incrementAndGet();
+        modCount.incrementAndGet();
+    }
+
+    @Override
+    public void afterModify() {
+        dirty = true;
+        modCount.incrementAndGet();
+        modifying.decrementAndGet();
+    }
+
+    @Override
+    public byte[] snapshot() {
+        if (!dirty || modifying.get() != 0) {
+            return null;
+        }
+        long count = modCount.get();
+        dirty = false;
+        byte[] copy = BufferUtil.toArray(data);
+        // markLogged总在修改期间调用，校验通过时之前记录的修改都已在拷贝中
+        synchronized (this) {
+            if (modifying.get() != 0 || modCount.get() != count) {
+                dirty = true;
+                return null;
+            }
+            recLSN = 0;
+        }
+        return copy;
+    }
+
+    @Override
+    public synchronized void markLogged(long lsn) {
+        if (recLSN == 0 || lsn < recLSN) {
+            recLSN = lsn;
+        }
+    }
+
+    @Override
+    public long getRecLSN() {
+        while (modifying.get() != 0) {
+            Thread.yield();
+        }
+        synchronized (this) {
+            return recLSN;
+        }
+    }
 }
@@ -0,0 +1,53 @@
+package com.mxp.mdb.backend.dm.pageCache;
+
+import com.mxp.mdb.common.error.Error;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * 页帧池
+ * 启动时按缓存容量一次性分配堆外内存并切分为PAGE_SIZE大小的页帧，页被驱逐后页帧归还复用，
+ * 缺页时不再分配新的数组。
+ * <p>
+ * 缓存先占用位置再取页帧，先归还页帧再释放位置，所以使用中的页帧数不会超过缓存容量，取页帧时池中总有空闲页帧。
+ */
+class FrameArena {
+
+    /**
+     * 每块连续分配的页帧数，避免单个ByteBuffer超过2GB
+     */
+    private static final int FRAMES_PER_SLAB = 1024;
+
+    private final ArrayBlockingQueue<ByteBuffer> free;
+
+    FrameArena(int frames, int frameSize) {
+        free = new ArrayBlockingQueue<>(frames);
+        for (int allocated = 0; allocated < frames; ) {
+            int n = Math.min(FRAMES_PER_SLAB, frames - allocated);
+            ByteBuffer slab = ByteBuffer.allocateDirect(n * frameSize);
+            for (int i = 0; i < n; ++i) {
+                slab.limit((i + 1) * frameSize);
+                slab.position(i * frameSize);
+                free.add(slab.slice());
+            }
+            allocated += n;
+        }
+    }
+
+    /**
+     * 取出一个空闲页帧，内容为上一次使用时的数据
+     */
+    ByteBuffer acquire() throws Exception {
+        ByteBuffer frame = free.poll();
+        if (frame == null) {
+            throw Error.CacheFullException;
+        }
+        return frame;
+    }
+
+    void recycle(ByteBuffer frame) {
+        frame.clear();
+        free.offer(frame);
+    }
+}
@@ -0,0 +1,175 @@
+package com.mxp.mdb.backend.dm.pageCache;
+
+import com.mxp.mdb.backend.utils.BufferUtil;
+import com.mxp.mdb.backend.utils.Panic;
+import com.mxp.mdb.common.error.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 基于文件映射的数据页缓存
+ * 与 PageCacheImpl 的区别只在缺页时的读取：页数据从只读的共享映射拷贝到页帧，不经过read系统调用，
+ * 预读交给操作系统，不再发起预读。
+ * 页帧、2Q驱逐、后台写线程和脏页表都与 PageCacheImpl 相同，写回只经由FileChannel，
+ * 共享映射与文件的写入一致，之后的缺页读到的是写回后的数据。页面不会先于日志落盘，
+ * 内存占用不超过页帧池的容量，映射本身只引用操作系统的文件缓存。
+ * <p>
+ * 数据库文件按 SEGMENT_SIZE 分段映射，映射会把文件扩展到段的边界，已有的映射不会被替换。
+ * 扩展出的空间全为0，合法的页面至少有页头不为0，所以打开时去掉文件末尾全0的页即可得到页数，关闭时截断到实际长度。
+ */
+public class MappedPageCacheImpl extends PageCacheImpl {
+
+    /**
+     * 每段映射64MB
+     */
+    private static final int SEGMENT_SIZE = 1 << 26;
+    private static final int PAGES_PER_SEGMENT = SEGMENT_SIZE / PAGE_SIZE;
+
+    private final RandomAccessFile raf;
+    private final FileChannel fc;
+
+    /**
+     * 各段映射，每段都按 SEGMENT_SIZE 映射，增长时复制数组并加入新的段
+     */
+    private volatile MappedByteBuffer[] segments;
+
+    /**
+     * 保护映射新的段
+     */
+    private final Lock lock;
+
+    public MappedPageCacheImpl(FileChannel fc, RandomAccessFile raf, int capacity) {
+        super(fc, raf, capacity, false);
+        this.fc = fc;
+        this.raf = raf;
+        this.lock = new ReentrantLock();
+        this.segments = new MappedByteBuffer[0];
+        int count = getPageNumber();
+        while (count > 0 && isZeroPage(count)) {
+            --count;
+        }
+        if (count < getPageNumber()) {
+            truncateByBgno(count);
+        }
+    }
+
+    /**
+     * 返回页面在映射中的只读视图
+     */
+    private ByteBuffer view(int pageNo) {
+        int segment = (pageNo - 1) / PAGES_PER_SEGMENT;
+        int offset = (pageNo - 1) % PAGES_PER_SEGMENT * PAGE_SIZE;
+        MappedByteBuffer[] segs = segments;
+        if (segment >= segs.length) {
+            segs = ensureMapped(segment);
+        }
+        ByteBuffer dup = segs[segment].duplicate();
+        dup.position(offset);
+        dup.limit(offset + PAGE_SIZE);
+        return dup.slice();
+    }
+
+    /**
+     * 保证第segment段已被映射，文件不足一段时由映射扩展
+     */
+    private MappedByteBuffer[] ensureMapped(int segment) {
+        lock.lock();
+        try {
+            MappedByteBuffer[] segs = segments;
+            if (segment < segs.length) {
+                return segs;
+            }
+            MappedByteBuffer[] grown = Arrays.copyOf(segs, segment + 1);
+            for (int i = segs.length; i <= segment; ++i) {
+                grown[i] = fc.map(FileChannel.MapMode.READ_ONLY, (long) i * SEGMENT_SIZE, SEGMENT_SIZE);
+            }
+            segments = grown;
+            return grown;
+        } catch (IOException e) {
+            Panic.panic(e);
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean isZeroPage(int pageNo) {
+        ByteBuffer page = view(pageNo);
+        for (int i = 0; i < PAGE_SIZE; i += Long.BYTES) {
+            if (page.getLong(i) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 从映射拷贝到页帧
+     */
+    @Override
+    void readPage(long pageNumber, ByteBuffer frame) {
+        BufferUtil.copy(view((int) pageNumber), 0, frame, 0, PAGE_SIZE);
+        frame.clear();
+    }
+
+    /**
+     * 写回所有页并刷盘后，将文件截断到实际页数
+     * 部分系统不允许截断仍被映射的文件，失败时保留扩展的空间，下次打开时会被忽略
+     */
+    @Override
+    public void close() {
+        super.close();
+        try {
+            raf.setLength(pageOffset(getPageNumber() + 1));
+        } catch (IOException ignored) {
+        }
+        try {
+            fc.close();
+            raf.close();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    public static PageCache create(String path, long memory) {
+        File file = new File(path + File.separator + PageCacheImpl.DB_FILE_NAME);
+        if (!file.exists()) {
+            try {
+                if (!file.createNewFile()) {
+                    Panic.panic(Error.FileNotExistsException);
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
+        return open(path, memory);
+    }
+
+    public static PageCache open(String path, long memory) {
+        File file = new File(path + File.separator + PageCacheImpl.DB_FILE_NAME);
+        if (!file.exists()) {
+            Panic.panic(Error.FileNotExistsException);
+        }
+        if (!file.canRead() || !file.canWrite()) {
+            Panic.panic(Error.FileCannotRWException);
+        }
+
+        FileChannel fc = null;
+        RandomAccessFile raf = null;
+        try {
+            raf = new RandomAccessFile(file, "rw");
+            fc = raf.getChannel();
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return new MappedPageCacheImpl(fc, raf, (int) memory / PAGE_SIZE);
+    }
+}
@@ -2,6 +2,8 @@ package com.mxp.mdb.backend.dm.pageCache;
 
 import com.mxp.mdb.backend.dm.page.Page;
 
+import java.util.Map;
+
 /**
  * @author mxp
  * @date 2023/4/12 18:25
@@ -21,5 +23,21 @@ public interface PageCache {
     int getPageNumber();
     void flushPage(Page page);
 
+    /**
+     * 写回所有脏页并刷盘，返回时所有已完成的修改都已持久化
+     */
+    void flushAll();
+
+    /**
+     * 脏页表：等待进行中的修改结束，收集内容尚未写出的页及其recLSN，并将已写出的页刷盘
+     * 返回时，不在表中的页上日志位置早于调用时日志末尾的修改都已持久化
+     * @return 页号到recLSN
+     */
+    Map<Integer, Long> dirtyPageTable();
+
+    /**
+     * 提示即将访问pageNo，实现可以异步预读该页及之后的页
+     */
+    void prefetch(int pageNo);
 
 }
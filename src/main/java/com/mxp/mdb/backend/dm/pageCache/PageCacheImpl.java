@@ -11,11 +11,30 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * 数据页缓存
+ * 未被引用的页仍然常驻内存，缓存满时按 2Q 策略驱逐，脏页在驱逐前写回
+ * <p>
+ * 驱逐和新建页只写文件不刷盘，由后台写线程定期把脏页按偏移排序后批量写回，每批只刷盘一次
+ * <p>
+ * 页数据存放在启动时分配好的堆外页帧中，见 FrameArena
+ * <p>
+ * 连续缺失相邻的页，或上层提示即将访问某页（如B+树叶子的兄弟节点）时，后台预读线程异步读入之后的一批页，
+ * 连续的页用一次分散读读入。访问到预读窗口中间的页时提前发起下一个窗口，顺序扫描不会再等待磁盘
+ *
  * @author mxp
  * @date 2023/4/12 18:31
  */
@@ -24,16 +43,61 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     public static final String DB_FILE_NAME = "m-db.db";
     private static final int MEM_MIN_LIM = 10;
 
+    /**
+     * 后台写线程的写回间隔
+     */
+    private static final long FLUSH_INTERVAL_MILLIS = 1000;
+
+    /**
+     * 每个预读窗口的页数
+     */
+    private static final int READ_AHEAD_PAGES = 32;
+
+    /**
+     * 排队等待的预读窗口数，超出的预读请求直接丢弃
+     */
+    private static final int READ_AHEAD_QUEUE = 4;
+
     private FileChannel fc;
     private RandomAccessFile raf;
-    private Lock lock;
     private AtomicInteger pageNumber;
+    private PageWriter writer;
+    private FrameArena arena;
+    private ThreadPoolExecutor prefetcher;
+    private int readAheadPages;
+
+    /**
+     * 新建页互斥，页写入文件后才增加pageNumber，预读不会读到尚未写入的新页
+     */
+    private Lock appendLock;
+
+    /**
+     * 上一次缺失的页号
+     */
+    private volatile int lastMiss;
+
+    /**
+     * 最近一个预读窗口[windowStart, windowEnd)，访问到trigger时发起下一个窗口
+     */
+    private int windowStart;
+    private int windowEnd;
+    private volatile int trigger;
 
     public PageCacheImpl(FileChannel fc, RandomAccessFile raf, int capacity) {
-        super(capacity);
+        this(fc, raf, capacity, true);
+    }
+
+    /**
+     * @param readAhead 是否预读，为false时 prefetch 和连续缺页都不会发起预读
+     */
+    PageCacheImpl(FileChannel fc, RandomAccessFile raf, int capacity, boolean readAhead) {
+        super(capacity, true);
         if (capacity < MEM_MIN_LIM) {
             Panic.panic(Error.MemTooSmallException);
         }
+        arena = new FrameArena(capacity, PAGE_SIZE);
+        // 预读的页在读入期间占用缓存位置，窗口不超过容量的1/4
+        readAheadPages = readAhead ? Math.min(READ_AHEAD_PAGES, capacity / 4) : 0;
 
         long length = 0;
         try {
@@ -43,8 +107,16 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         this.fc = fc;
         this.raf = raf;
-        lock = new ReentrantLock();
         pageNumber = new AtomicInteger((int) (length) / PAGE_SIZE);
+        appendLock = new ReentrantLock();
+        prefetcher = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(READ_AHEAD_QUEUE), r -> {
+            Thread t = new Thread(r, "page-prefetcher");
+            t.setDaemon(true);
+            return t;
+        }, new ThreadPoolExecutor.DiscardPolicy());
+        writer = new PageWriter();
+        writer.start();
     }
 
     /**
@@ -57,58 +129,202 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
     }
 
     /**
-     * 根据pageNumber从数据库文件中读取页数据，并包裹成Page
+     * 根据pageNumber从数据库文件中读取页数据到空闲页帧，并包裹成Page
      * @param pageNumber
      * @return
      * @throws Exception
      */
     @Override
     protected Page getForCache(long pageNumber) throws Exception {
-        long offset = pageOffset(pageNumber);
-        ByteBuffer buffer = ByteBuffer.allocate(PAGE_SIZE);
-        lock.lock();
+        ByteBuffer frame = arena.acquire();
         try {
-            fc.position(offset);
-            fc.read(buffer);
+            readPage(pageNumber, frame);
         } catch (Exception e) {
             Panic.panic(e);
-        } finally {
-            lock.unlock();
         }
-        return new PageImpl((int) pageNumber, buffer.array(), this);
+        int no = (int) pageNumber;
+        if (no == lastMiss + 1) {
+            readAhead(no + 1);
+        }
+        lastMiss = no;
+        return new PageImpl(no, frame, this);
     }
 
     /**
-     * 根据是否为脏页决定是否重新刷盘
+     * 将页数据读入页帧，返回时页帧的position为0
+     */
+    void readPage(long pageNumber, ByteBuffer frame) throws IOException {
+        long offset = pageOffset(pageNumber);
+        while (frame.hasRemaining()) {
+            if (fc.read(frame, offset + frame.position()) < 0) {
+                break;
+            }
+        }
+        zeroRemaining(frame);
+    }
+
+    /**
+     * 页帧中残留着上一页的数据，超出文件末尾的部分补0
+     */
+    private void zeroRemaining(ByteBuffer frame) {
+        while (frame.hasRemaining()) {
+            frame.put((byte) 0);
+        }
+        frame.clear();
+    }
+
+    /**
+     * 批量读入预读的页，页号连续的部分用一次分散读读入
+     * 只有预读线程使用channel的position，其它读写都是带偏移的，不受影响
+     * @param keys 升序的页号
+     * @return
+     * @throws Exception
+     */
+    @Override
+    protected List<Page> getForCache(long[] keys) throws Exception {
+        List<Page> pages = new ArrayList<>(keys.length);
+        int start = 0;
+        while (start < keys.length) {
+            int end = start + 1;
+            while (end < keys.length && keys[end] == keys[end - 1] + 1) {
+                ++end;
+            }
+            ByteBuffer[] frames = new ByteBuffer[end - start];
+            for (int i = 0; i < frames.length; ++i) {
+                frames[i] = arena.acquire();
+            }
+            fc.position(pageOffset(keys[start]));
+            while (frames[frames.length - 1].hasRemaining()) {
+                if (fc.read(frames) < 0) {
+                    break;
+                }
+            }
+            for (int i = 0; i < frames.length; ++i) {
+                zeroRemaining(frames[i]);
+                pages.add(new PageImpl((int) keys[start + i], frames[i], this));
+            }
+            start = end;
+        }
+        return pages;
+    }
+
+    /**
+     * 从from开始发起一个预读窗口，from已在上一个窗口中时什么都不做
+     * @param from
+     */
+    private synchronized void readAhead(int from) {
+        if (from >= windowStart && from < windowEnd) {
+            return;
+        }
+        int to = Math.min(from + readAheadPages, pageNumber.get() + 1);
+        if (from >= to) {
+            return;
+        }
+        windowStart = from;
+        windowEnd = to;
+        trigger = from + (to - from) / 2;
+        long[] keys = new long[to - from];
+        for (int i = 0; i < keys.length; ++i) {
+            keys[i] = from + i;
+        }
+        prefetcher.execute(() -> preload(keys));
+    }
+
+    /**
+     * 访问到了上一个窗口的中间，从上一个窗口的末尾继续预读
+     */
+    private synchronized void nextWindow() {
+        readAhead(windowEnd);
+    }
+
+    /**
+     * 上层提示即将访问pageNo，从该页开始预读
+     * @param pageNo
+     */
+    @Override
+    public void prefetch(int pageNo) {
+        readAhead(pageNo);
+    }
+
+    /**
+     * 根据是否为脏页决定是否写回，之后归还页帧
+     * 被驱逐的页没有引用，不会有进行中的修改；
+     * 后台写线程可能仍持有该页，它在页面锁内检查脏标记，不会再读取已归还的页帧
      * @param obj
      */
     @Override
     protected void releaseForCache(Page obj) {
-        if (obj.isDirty()) {
-            flush(obj);
-            obj.setDirty(false);
+        obj.lock();
+        try {
+            if (obj.isDirty()) {
+                obj.setDirty(false);
+                write(obj.getPageNumber(), obj.getData().duplicate());
+            }
+            arena.recycle(obj.getData());
+        } finally {
+            obj.unlock();
         }
     }
 
     /**
-     * 将数据刷入磁盘
-     * @param obj
+     * 将页数据写入文件，不刷盘
+     * 使用带偏移的读写，不修改channel的位置，不同页的读写可以并发进行
+     * @param pageNo
+     * @param buffer
      */
-    private void flush(Page obj) {
-        long offset = pageOffset(obj.getPageNumber());
-        lock.lock();
+    private void write(int pageNo, ByteBuffer buffer) {
+        long offset = pageOffset(pageNo);
+        buffer.clear();
         try {
-            ByteBuffer buffer = ByteBuffer.wrap(obj.getData());
-            fc.position(offset);
-            fc.write(buffer);
-            fc.force(false);
+            while (buffer.hasRemaining()) {
+                fc.write(buffer, offset + buffer.position());
+            }
         } catch (Exception e) {
             Panic.panic(e);
-        } finally {
-            lock.unlock();
         }
     }
 
+    private void force() {
+        try {
+            fc.force(false);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+    }
+
+    /**
+     * 将缓存中的脏页按页号排序后写回，不刷盘
+     * @param wait 是否等待正在被修改的页完成修改，为false时跳过这些页留给下一批
+     * @return 是否写出了页
+     */
+    private boolean writeDirtyPages(boolean wait) {
+        List<Page> pages = new ArrayList<>();
+        forEachCached(page -> {
+            if (page.isDirty()) {
+                pages.add(page);
+            }
+        });
+        if (pages.isEmpty()) {
+            return false;
+        }
+        pages.sort(Comparator.comparingInt(Page::getPageNumber));
+        for (Page page : pages) {
+            page.lock();
+            try {
+                byte[] image;
+                while ((image = page.snapshot()) == null && wait && page.isDirty()) {
+                    Thread.yield();
+                }
+                if (image != null) {
+                    write(page.getPageNumber(), ByteBuffer.wrap(image));
+                }
+            } finally {
+                page.unlock();
+            }
+        }
+        return true;
+    }
+
     /**
      * 创建新数据页
      * @param initData
@@ -116,10 +332,15 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public int newPage(byte[] initData) {
-        int no = pageNumber.incrementAndGet();
-        Page pg = new PageImpl(no, initData, null);
-        flush(pg);
-        return no;
+        appendLock.lock();
+        try {
+            int no = pageNumber.get() + 1;
+            write(no, ByteBuffer.wrap(initData));
+            pageNumber.set(no);
+            return no;
+        } finally {
+            appendLock.unlock();
+        }
     }
 
     /**
@@ -132,11 +353,14 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
      */
     @Override
     public Page getPage(int pageNo) throws Exception {
+        if (pageNo == trigger) {
+            nextWindow();
+        }
         return get(pageNo);
     }
 
     /**
-     * 将数据页从缓存中移除
+     * 释放对数据页的引用，页仍留在缓存中等待驱逐
      * @param page
      */
     @Override
@@ -160,9 +384,66 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         return pageNumber.intValue();
     }
 
+    /**
+     * 立即写回并刷盘
+     * @param page
+     */
     @Override
     public void flushPage(Page page) {
-        flush(page);
+        page.lock();
+        try {
+            page.setDirty(false);
+            write(page.getPageNumber(), page.getData().duplicate());
+        } finally {
+            page.unlock();
+        }
+        force();
+    }
+
+    @Override
+    public void flushAll() {
+        writeDirtyPages(true);
+        force();
+    }
+
+    /**
+     * 不写回脏页，后台写线程会持续写出脏页，使脏页表保持较小
+     * 页面锁内拷贝和写出是一起完成的，持有页面锁时recLSN为0的页都已写入文件，之后刷盘即可
+     */
+    @Override
+    public Map<Integer, Long> dirtyPageTable() {
+        Map<Integer, Long> table = new HashMap<>();
+        forEachCached(page -> {
+            page.lock();
+            try {
+                long recLSN = page.getRecLSN();
+                if (recLSN != 0) {
+                    table.put(page.getPageNumber(), recLSN);
+                }
+            } finally {
+                page.unlock();
+            }
+        });
+        force();
+        return table;
+    }
+
+    /**
+     * 停止预读线程和后台写线程，写回所有页并刷盘
+     */
+    @Override
+    public void close() {
+        // 中断会关闭正在读写的FileChannel，只丢弃排队的预读，等正在进行的完成
+        prefetcher.getQueue().clear();
+        prefetcher.shutdown();
+        try {
+            prefetcher.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        writer.shutdown();
+        super.close();
+        force();
     }
 
     public static PageCache create(String path, long memory) {
@@ -211,4 +492,43 @@ public class PageCacheImpl extends AbstractCache<Page> implements PageCache {
         }
         return new PageCacheImpl(fc, raf, (int) memory / PAGE_SIZE);
     }
+
+    /**
+     * 后台写线程
+     */
+    private class PageWriter extends Thread {
+
+        private volatile boolean running = true;
+
+        PageWriter() {
+            setName("page-writer");
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(FLUSH_INTERVAL_MILLIS));
+                if (!running) {
+                    break;
+                }
+                if (writeDirtyPages(false)) {
+                    force();
+                }
+            }
+        }
+
+        /**
+         * 不能中断写线程，中断会关闭正在写的FileChannel
+         */
+        void shutdown() {
+            running = false;
+            LockSupport.unpark(this);
+            try {
+                join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
 }
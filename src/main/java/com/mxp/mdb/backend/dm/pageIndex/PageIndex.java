@@ -3,6 +3,7 @@ package com.mxp.mdb.backend.dm.pageIndex;
 import com.mxp.mdb.backend.dm.pageCache.PageCache;
 
 import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -60,4 +61,28 @@ public class PageIndex {
             lock.unlock();
         }
     }
+
+    /**
+     * 取出pageNo的页面信息，之后由调用方重新add
+     * 页面正被插入使用时不在索引中，返回null
+     * @param pageNo
+     * @param freeSpace 页面登记时的空闲空间，即当前的空闲空间
+     * @return
+     */
+    public PageInfo remove(int pageNo, int freeSpace) {
+        lock.lock();
+        try {
+            Iterator<PageInfo> iterator = lists[freeSpace / THRESHOLD].iterator();
+            while (iterator.hasNext()) {
+                PageInfo info = iterator.next();
+                if (info.getPageNo() == pageNo) {
+                    iterator.remove();
+                    return info;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
 }
@@ -1,5 +1,6 @@
 package com.mxp.mdb.backend.im;
 
+import com.mxp.mdb.backend.common.ConcurrentLongObjectMap;
 import com.mxp.mdb.backend.common.SubArray;
 import com.mxp.mdb.backend.dm.DataManager;
 import com.mxp.mdb.backend.dm.dataItem.DataItem;
@@ -7,12 +8,15 @@ import com.mxp.mdb.backend.tm.TransactionManager;
 import com.mxp.mdb.backend.utils.Parser;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
 
 /**
+ * B+树索引
+ * 查找不加锁，逐个节点乐观读并校验版本；插入和删除只对正在修改的节点加写锁，见 Node
+ *
  * @author mxp
  * @date 2023/4/18 8:58
  */
@@ -23,6 +27,16 @@ public class BTree {
     DataItem bootDataItem;
     Lock bootLock;
 
+    /**
+     * 根节点的UID，读取时不加锁，修改时与 bootDataItem 一起在 bootLock 中更新
+     */
+    volatile long rootUid;
+
+    /**
+     * 各节点的版本锁，节点创建后不会被删除，版本锁也一直保留
+     */
+    private final ConcurrentLongObjectMap<StampedLock> latches = new ConcurrentLongObjectMap<>();
+
     public static long create(DataManager dm) throws Exception {
         byte[] raw = Node.newNilRootRaw();
         long rootUid = dm.insert(TransactionManager.SUPER_XID, raw);
@@ -38,6 +52,8 @@ public class BTree {
         tree.dm = dm;
         tree.bootDataItem = item;
         tree.bootLock = new ReentrantLock();
+        SubArray raw = item.data();
+        tree.rootUid = raw.raw.getLong(raw.start);
         return tree;
     }
 
@@ -46,9 +62,24 @@ public class BTree {
     }
 
     public List<Long> searchRange(long left, long right) throws Exception {
-        long rootUid = rootUid();
-        long leafUid = searchLeaf(rootUid, left);
         List<Long> uids = new ArrayList<>();
+        scanRange(left, right, uids::addAll);
+        return uids;
+    }
+
+    /**
+     * 逐个叶子处理范围内的 uid
+     */
+    public interface LeafVisitor {
+        void visit(List<Long> uids) throws Exception;
+    }
+
+    /**
+     * 沿兄弟链扫描 [left, right]，每个叶子中的 uid 在释放叶子后交给 visitor，不会一次取出整个范围
+     * visitor 可以从树中删除 uid，删除不合并节点，兄弟链保持不变
+     */
+    public void scanRange(long left, long right, LeafVisitor visitor) throws Exception {
+        long leafUid = firstLeaf(left);
         Node leaf;
         Node.LeafSearchRangeRes res;
         while (true) {
@@ -56,13 +87,37 @@ public class BTree {
             res = leaf.leafSearchRange(left, right);
             leaf.release();
 
-            uids.addAll(res.uids);
+            visitor.visit(res.uids);
             if (res.siblingUid == 0) {
                 break;
             }
+            // 沿兄弟链扫描，提示页缓存从兄弟节点所在页开始预读
+            dm.prefetch(res.siblingUid);
+            leafUid = res.siblingUid;
+        }
+    }
+
+    /**
+     * 从叶子中删除 key 对应的 uid，节点变空也不合并
+     * 删除后叶子中最大的 key 可能小于父节点中的分隔键，插入和查找都会沿兄弟链右移，仍能找到正确的位置
+     * @return 没有找到时返回false
+     */
+    public boolean delete(long key, long uid) throws Exception {
+        long leafUid = firstLeaf(key);
+        Node leaf;
+        Node.LeafDeleteRes res;
+        while (true) {
+            leaf = Node.loadNode(this, leafUid);
+            res = leaf.leafDelete(key, uid);
+            leaf.release();
+            if (res.found) {
+                return true;
+            }
+            if (res.siblingUid == 0) {
+                return false;
+            }
             leafUid = res.siblingUid;
         }
-        return uids;
     }
 
     static class InsertRes {
@@ -84,14 +139,14 @@ public class BTree {
 
     private InsertRes insert(long rootUid, long uid, long key) throws Exception {
         Node node = Node.loadNode(this, rootUid);
-        boolean isLeaf = node.isLeaf();
+        Node.SearchNextRes searchRes = node.searchNext(key);
         node.release();
 
-        if (isLeaf) {
+        if (searchRes.isLeaf) {
             return insertAndSplit(rootUid, uid, key);
         }
 
-        long next = searchNext(rootUid, key);
+        long next = searchRes.uid != 0 ? searchRes.uid : searchNext(searchRes.siblingUid, key);
         InsertRes res = insert(next, uid, key);
         if (res.newNode != 0) {
             return insertAndSplit(rootUid, res.newNode, res.newKey);
@@ -116,17 +171,26 @@ public class BTree {
         }
     }
 
+    /**
+     * 可能包含 key 的最左边的叶子
+     * 分裂时右半部分的第一个 key 成为分隔键，左半部分中可能还有相同的 key，
+     * 按 key - 1 查找才不会越过这些叶子
+     */
+    private long firstLeaf(long key) throws Exception {
+        return searchLeaf(rootUid(), key == Long.MIN_VALUE ? key : key - 1);
+    }
+
     private long searchLeaf(long nodeUid, long key) throws Exception {
-        boolean isLeaf;
         Node node;
+        Node.SearchNextRes res;
         while (true) {
             node = Node.loadNode(this, nodeUid);
-            isLeaf = node.isLeaf();
+            res = node.searchNext(key);
             node.release();
-            if (isLeaf) {
+            if (res.isLeaf) {
                 return nodeUid;
             }
-            nodeUid = searchNext(nodeUid, key);
+            nodeUid = res.uid != 0 ? res.uid : res.siblingUid;
         }
     }
 
@@ -145,13 +209,20 @@ public class BTree {
     }
 
     private long rootUid() {
-        bootLock.lock();
-        try {
-            SubArray raw = bootDataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start, raw.start + Long.BYTES));
-        } finally {
-            bootLock.unlock();
+        return rootUid;
+    }
+
+    /**
+     * 节点的版本锁，第一次访问时创建
+     */
+    StampedLock latch(long uid) {
+        StampedLock latch = latches.get(uid);
+        if (latch != null) {
+            return latch;
         }
+        StampedLock created = new StampedLock();
+        latch = latches.putIfAbsent(uid, created);
+        return latch == null ? created : latch;
     }
 
     private void updateRootUid(long left, long right, long rightKey) throws Exception {
@@ -161,8 +232,9 @@ public class BTree {
             long uid = dm.insert(TransactionManager.SUPER_XID, raw);
             bootDataItem.before();
             SubArray diRaw = bootDataItem.data();
-            System.arraycopy(Parser.longToByte(uid), 0, diRaw.raw, diRaw.start, Long.BYTES);
+            diRaw.raw.putLong(diRaw.start, uid);
             bootDataItem.after(TransactionManager.SUPER_XID);
+            rootUid = uid;
         } finally {
             bootLock.unlock();
         }
@@ -3,11 +3,13 @@ package com.mxp.mdb.backend.im;
 import com.mxp.mdb.backend.common.SubArray;
 import com.mxp.mdb.backend.dm.dataItem.DataItem;
 import com.mxp.mdb.backend.tm.TransactionManager;
-import com.mxp.mdb.backend.utils.Parser;
+import com.mxp.mdb.backend.utils.BufferUtil;
 
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.locks.StampedLock;
+import java.util.function.Supplier;
 
 /**
  * Node结构如下：
@@ -18,6 +20,10 @@ import java.util.List;
  * KeyNumber 为该节点中 key 的个数
  * SiblingUid 是其兄弟节点存储在 DM 中的 UID。
  * 后续是穿插的子节点（SonN）和 KeyN。最后的一个 KeyN 始终为 MAX_VALUE
+ * <p>
+ * 读节点不加锁，以节点的版本锁乐观读后校验，读取期间节点被修改则重读；修改节点时只对该节点加写锁。
+ * 节点分裂时先写好新的右兄弟再修改自身，查找时沿兄弟链右移，因此读者从父节点拿到子节点后不需要继续持有父节点，
+ * 子节点在此期间分裂也能找到正确的位置
  *
  * @author mxp
  * @date 2023/4/18 9:00
@@ -32,68 +38,86 @@ public class Node {
     static final int BALANCE_NUMBER = 32;
     static final int NODE_SIZE = NODE_HEADER_SIZE + (2 * 8) * (BALANCE_NUMBER * 2 + 2);
 
+    /**
+     * 乐观读连续校验失败的次数超过该值后改为加读锁
+     */
+    static final int OPTIMISTIC_RETRIES = 3;
+
     BTree tree;
     DataItem dataItem;
     SubArray raw;
     long uid;
+    StampedLock latch;
 
     static void setRawIsLeaf(SubArray raw, boolean isLeaf) {
-        raw.raw[raw.start + IS_LEAF_OFFSET] = isLeaf ? (byte) 1 : (byte) 0;
+        raw.raw.put(raw.start + IS_LEAF_OFFSET, isLeaf ? (byte) 1 : (byte) 0);
     }
 
     static boolean getRawIfLeaf(SubArray raw) {
-        return raw.raw[raw.start + IS_LEAF_OFFSET] == (byte) 1;
+        return raw.raw.get(raw.start + IS_LEAF_OFFSET) == (byte) 1;
     }
 
     static void setRawNoKeys(SubArray raw, int noKeys) {
-        System.arraycopy(Parser.shortToByte((short) noKeys), 0, raw.raw, raw.start + NO_KEYS_OFFSET, Short.BYTES);
+        raw.raw.putShort(raw.start + NO_KEYS_OFFSET, (short) noKeys);
     }
 
     static int getRawNoKeys(SubArray raw) {
-        return Parser.parseShort(Arrays.copyOfRange(raw.raw, raw.start + NO_KEYS_OFFSET, raw.start + NO_KEYS_OFFSET + Short.BYTES));
+        return raw.raw.getShort(raw.start + NO_KEYS_OFFSET);
+    }
+
+    /**
+     * 乐观读时读到的个数可能是修改到一半的值，限制在节点的容量内，保证不会越界
+     */
+    static int getRawNoKeysBounded(SubArray raw) {
+        return Math.max(0, Math.min(getRawNoKeys(raw), BALANCE_NUMBER * 2 + 2));
     }
 
     static void setRawSibling(SubArray raw, long sibling) {
-        System.arraycopy(Parser.longToByte(sibling), 0, raw.raw, raw.start + SIBLING_OFFSET, Long.BYTES);
+        raw.raw.putLong(raw.start + SIBLING_OFFSET, sibling);
     }
 
     static long getRawSibling(SubArray raw) {
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + SIBLING_OFFSET, raw.start + SIBLING_OFFSET + Long.BYTES));
+        return raw.raw.getLong(raw.start + SIBLING_OFFSET);
     }
 
     static void setRawKthSon(SubArray raw, long uid, int kth) {
-        System.arraycopy(Parser.longToByte(uid), 0, raw.raw, raw.start + NODE_HEADER_SIZE + (2 * Long.BYTES * kth), Long.BYTES);
+        raw.raw.putLong(raw.start + NODE_HEADER_SIZE + (2 * Long.BYTES * kth), uid);
     }
 
     static long getRawKthSon(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + (2 * Long.BYTES * kth);
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + 8));
+        return raw.raw.getLong(raw.start + NODE_HEADER_SIZE + (2 * Long.BYTES * kth));
     }
 
     static void setRawKthKey(SubArray raw, long key, int kth) {
-        System.arraycopy(Parser.longToByte(key), 0, raw.raw, raw.start + NODE_HEADER_SIZE + (2 * Long.BYTES * kth) + Long.BYTES, Long.BYTES);
+        raw.raw.putLong(raw.start + NODE_HEADER_SIZE + (2 * Long.BYTES * kth) + Long.BYTES, key);
     }
 
     static long getRawKthKey(SubArray raw, int kth) {
-        int offset = raw.start + NODE_HEADER_SIZE + (2 * Long.BYTES * kth) + Long.BYTES;
-        return Parser.parseLong(Arrays.copyOfRange(raw.raw, offset, offset + Long.BYTES));
+        return raw.raw.getLong(raw.start + NODE_HEADER_SIZE + (2 * Long.BYTES * kth) + Long.BYTES);
     }
 
     static void copyRawFromKth(SubArray from, SubArray to, int kth) {
         int offset = from.start + NODE_HEADER_SIZE + (2 * Long.BYTES * kth);
-        System.arraycopy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
+        BufferUtil.copy(from.raw, offset, to.raw, to.start + NODE_HEADER_SIZE, from.end - offset);
     }
 
     static void shiftRawKth(SubArray raw, int kth) {
         int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
-        int end = raw.start + NODE_SIZE - 1;
-        for (int i = end; i >= begin; --i) {
-            raw.raw[i] = raw.raw[i - (8 << 1)];
-        }
+        int end = raw.start + NODE_SIZE;
+        BufferUtil.copy(raw.raw, begin - (8 << 1), raw.raw, begin, end - begin);
+    }
+
+    /**
+     * 删除第kth个键值对，之后的前移
+     */
+    static void unshiftRawKth(SubArray raw, int kth) {
+        int begin = raw.start + NODE_HEADER_SIZE + (kth + 1) * (8 * 2);
+        int end = raw.start + NODE_SIZE;
+        BufferUtil.copy(raw.raw, begin, raw.raw, begin - (8 << 1), end - begin);
     }
 
     static byte[] newRootRaw(long left, long right, long key) {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        SubArray raw = new SubArray(ByteBuffer.allocate(NODE_SIZE), 0, NODE_SIZE);
         setRawIsLeaf(raw, false);
         setRawNoKeys(raw, 2);
         setRawSibling(raw, 0);
@@ -101,15 +125,15 @@ public class Node {
         setRawKthKey(raw, key, 0);
         setRawKthSon(raw, right, 1);
         setRawKthKey(raw, Long.MAX_VALUE, 1);
-        return raw.raw;
+        return raw.raw.array();
     }
 
     public static byte[] newNilRootRaw() {
-        SubArray raw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        SubArray raw = new SubArray(ByteBuffer.allocate(NODE_SIZE), 0, NODE_SIZE);
         setRawIsLeaf(raw, true);
         setRawNoKeys(raw, 0);
         setRawSibling(raw, 0);
-        return raw.raw;
+        return raw.raw.array();
     }
 
     public static Node loadNode(BTree bTree, long leafUid) throws Exception {
@@ -120,6 +144,7 @@ public class Node {
         node.dataItem = raw;
         node.uid = leafUid;
         node.raw = raw.data();
+        node.latch = bTree.latch(leafUid);
         return node;
     }
 
@@ -127,30 +152,62 @@ public class Node {
         dataItem.release();
     }
 
-    public boolean isLeaf() {
-        dataItem.rLock();
+    /**
+     * 乐观读：不加锁执行reader，之后校验节点版本，期间节点被修改则重读；
+     * 节点正被修改或多次校验失败时加读锁执行。
+     * 校验通过前reader读到的内容可能不一致，只要不越界即可，校验失败时其结果和抛出的异常都被丢弃
+     */
+    private <R> R read(Supplier<R> reader) {
+        for (int i = 0; i < OPTIMISTIC_RETRIES; ++i) {
+            long stamp = latch.tryOptimisticRead();
+            if (stamp == 0) {
+                break;
+            }
+            R res;
+            try {
+                res = reader.get();
+            } catch (RuntimeException e) {
+                if (latch.validate(stamp)) {
+                    throw e;
+                }
+                continue;
+            }
+            if (latch.validate(stamp)) {
+                return res;
+            }
+        }
+        long stamp = latch.readLock();
         try {
-            return getRawIfLeaf(raw);
+            return reader.get();
         } finally {
-            dataItem.rUnLock();
+            latch.unlockRead(stamp);
         }
     }
 
+    public boolean isLeaf() {
+        return read(() -> getRawIfLeaf(raw));
+    }
+
     static class SearchNextRes {
+        boolean isLeaf;
         long uid;
         long siblingUid;
     }
 
     /**
      * 寻找对应 key 的 UID, 如果找不到, 则返回兄弟节点的 UID
+     * 叶子节点只返回 isLeaf，查找时每层只需载入一次节点
      * @param key
      * @return
      */
     public SearchNextRes searchNext(long key) {
-        dataItem.rLock();
-        try {
+        return read(() -> {
             SearchNextRes res = new SearchNextRes();
-            int noKeys = getRawNoKeys(raw);
+            if (getRawIfLeaf(raw)) {
+                res.isLeaf = true;
+                return res;
+            }
+            int noKeys = getRawNoKeysBounded(raw);
             for (int i = 0; i < noKeys; ++i) {
                 long rawKthKey = getRawKthKey(raw, i);
                 if (key < rawKthKey) {
@@ -162,9 +219,7 @@ public class Node {
             res.uid = 0;
             res.siblingUid = getRawSibling(raw);
             return res;
-        } finally {
-            dataItem.rUnLock();
-        }
+        });
     }
 
     static class LeafSearchRangeRes {
@@ -177,9 +232,8 @@ public class Node {
      * 这里约定如果 rightKey 大于等于该节点的最大的 key, 则还同时返回兄弟节点的 UID，方便继续搜索下一个节点。
      */
     public LeafSearchRangeRes leafSearchRange(long leftKey, long rightKey) {
-        dataItem.rLock();
-        try {
-            int noKey = getRawNoKeys(raw);
+        return read(() -> {
+            int noKey = getRawNoKeysBounded(raw);
             int kth = 0;
             while (kth < noKey) {
                 if (getRawKthKey(raw, kth) >= leftKey) {
@@ -203,8 +257,51 @@ public class Node {
             }
             res.uids = uids;
             return res;
+        });
+    }
+
+    static class LeafDeleteRes {
+        boolean found;
+        long siblingUid;
+    }
+
+    /**
+     * 在叶子节点中删除 key 对应的 uid，不合并节点
+     * 如果 key 可能在兄弟节点中，则返回兄弟节点的 UID
+     */
+    public LeafDeleteRes leafDelete(long key, long uid) {
+        LeafDeleteRes res = new LeafDeleteRes();
+        long stamp = latch.writeLock();
+        dataItem.before();
+        try {
+            int noKeys = getRawNoKeys(raw);
+            int kth = 0;
+            while (kth < noKeys && getRawKthKey(raw, kth) < key) {
+                ++kth;
+            }
+            while (kth < noKeys && getRawKthKey(raw, kth) == key) {
+                if (getRawKthSon(raw, kth) == uid) {
+                    unshiftRawKth(raw, kth);
+                    setRawNoKeys(raw, noKeys - 1);
+                    res.found = true;
+                    return res;
+                }
+                ++kth;
+            }
+            if (kth == noKeys) {
+                res.siblingUid = getRawSibling(raw);
+            }
+            return res;
         } finally {
-            dataItem.rUnLock();
+            try {
+                if (res.found) {
+                    dataItem.after(TransactionManager.SUPER_XID);
+                } else {
+                    dataItem.unBefore();
+                }
+            } finally {
+                latch.unlockWrite(stamp);
+            }
         }
     }
 
@@ -221,6 +318,7 @@ public class Node {
         Exception err = null;
         InsertAndSplitRes res = new InsertAndSplitRes();
 
+        long stamp = latch.writeLock();
         dataItem.before();
         try {
             success = insert(uid, key);
@@ -243,22 +341,26 @@ public class Node {
                 throw e;
             }
         } finally {
-            if (err == null && success) {
-                dataItem.after(TransactionManager.SUPER_XID);
-            } else {
-                dataItem.unBefore();
+            try {
+                if (err == null && success) {
+                    dataItem.after(TransactionManager.SUPER_XID);
+                } else {
+                    dataItem.unBefore();
+                }
+            } finally {
+                latch.unlockWrite(stamp);
             }
         }
     }
 
     private SplitRes split() throws Exception {
-        SubArray nodeRaw = new SubArray(new byte[NODE_SIZE], 0, NODE_SIZE);
+        SubArray nodeRaw = new SubArray(ByteBuffer.allocate(NODE_SIZE), 0, NODE_SIZE);
         setRawIsLeaf(nodeRaw, getRawIfLeaf(raw));
         setRawNoKeys(nodeRaw, BALANCE_NUMBER);
         setRawSibling(nodeRaw, getRawSibling(raw));
         copyRawFromKth(raw, nodeRaw, BALANCE_NUMBER);
 
-        long son = tree.dm.insert(TransactionManager.SUPER_XID, nodeRaw.raw);
+        long son = tree.dm.insert(TransactionManager.SUPER_XID, nodeRaw.raw.array());
         setRawNoKeys(raw, BALANCE_NUMBER);
         setRawSibling(raw, son);
 
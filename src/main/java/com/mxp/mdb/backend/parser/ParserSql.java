@@ -350,12 +350,13 @@ public class ParserSql {
 
     /**
      * <select statement>
-     * select (*|<field name list>) from <table name> [<where statement>]
+     * select (*|<field name list>) from <table name> [<where statement>] [for (update|share)]
      *
      * exp:
      * select * from student where id = 1
      * select name from student where id > 1 and id < 4
      * select name, age, id from student where id = 12
+     * select * from student where id = 1 for update
      *
      * @param tokenizer
      * @return
@@ -410,7 +411,24 @@ public class ParserSql {
             return select;
         }
 
-        select.where = parseWhere(tokenizer);
+        if (!"for".equals(tmp)) {
+            select.where = parseWhere(tokenizer, true);
+        }
+        if ("for".equals(tokenizer.peek())) {
+            tokenizer.pop();
+            String mode = tokenizer.peek();
+            if ("update".equals(mode)) {
+                select.forUpdate = true;
+            } else if ("share".equals(mode)) {
+                select.forShare = true;
+            } else {
+                throwInvalidCommandException();
+            }
+            tokenizer.pop();
+        }
+        if (!"".equals(tokenizer.peek())) {
+            throwInvalidCommandException();
+        }
         return select;
     }
 
@@ -422,10 +440,11 @@ public class ParserSql {
      * where age > 10 or age < 3
      *
      * @param tokenizer
+     * @param allowFor 是否允许其后跟 for update/for share 子句，只有 select 允许
      * @return
      * @throws Exception
      */
-    private static Where parseWhere(Tokenizer tokenizer) throws Exception {
+    private static Where parseWhere(Tokenizer tokenizer, boolean allowFor) throws Exception {
         String peek = tokenizer.peek();
         if (!"where".equals(peek)) {
             throwInvalidCommandException();
@@ -435,8 +454,9 @@ public class ParserSql {
         Where where = new Where();
         where.singleExp1 = singleExpression;
         String logicOp = tokenizer.peek();
-        if ("".equals(logicOp)) {
-            where.logicOp = logicOp;
+        // select 的 for update/for share 子句跟在 where 之后
+        if ("".equals(logicOp) || (allowFor && "for".equals(logicOp))) {
+            where.logicOp = "";
             return where;
         }
 
@@ -448,7 +468,8 @@ public class ParserSql {
         tokenizer.pop();
 
         where.singleExp2 = parseSingleExp(tokenizer);
-        if (!"".equals(tokenizer.peek())) {
+        String next = tokenizer.peek();
+        if (!"".equals(next) && !(allowFor && "for".equals(next))) {
             throwInvalidCommandException();
         }
         return where;
@@ -557,7 +578,10 @@ public class ParserSql {
             update.where = null;
             return update;
         }
-        update.where = parseWhere(tokenizer);
+        update.where = parseWhere(tokenizer, false);
+        if (!"".equals(tokenizer.peek())) {
+            throwInvalidCommandException();
+        }
         return update;
     }
 
@@ -585,7 +609,10 @@ public class ParserSql {
         }
         tokenizer.pop();
 
-        delete.where = parseWhere(tokenizer);
+        delete.where = parseWhere(tokenizer, false);
+        if (!"".equals(tokenizer.peek())) {
+            throwInvalidCommandException();
+        }
         return delete;
     }
 
@@ -9,4 +9,10 @@ public class Select {
     public String tableName;
     public String[] fields;
     public Where where;
+
+    /**
+     * for update 对读到的行加X锁，for share 加S锁，都没有时不加锁
+     */
+    public boolean forUpdate;
+    public boolean forShare;
 }
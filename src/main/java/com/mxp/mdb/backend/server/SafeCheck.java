@@ -5,12 +5,23 @@ import com.mxp.mdb.backend.dm.DataManagerImpl;
 import com.mxp.mdb.backend.tbm.TableManager;
 import com.mxp.mdb.backend.tbm.TableManagerImpl;
 import com.mxp.mdb.backend.tm.MDBTransactionManager;
+import com.mxp.mdb.backend.tm.MappedTransactionManager;
+import com.mxp.mdb.backend.tm.TransactionManager;
+import com.mxp.mdb.backend.vm.LockTable;
 import com.mxp.mdb.backend.vm.VersionManager;
 import com.mxp.mdb.backend.vm.VersionManagerImpl;
 
 import java.io.File;
 
 /**
+ * 启动选项以系统属性给出，例如 java -Dmdb.mmap=true ...
+ * <ul>
+ *     <li>mdb.mmap：为true时数据文件使用文件映射的页缓存</li>
+ *     <li>mdb.lock.policy：锁冲突时的处理策略，取 LockTable.WaitPolicy 的名字，默认 DEADLOCK_DETECT</li>
+ *     <li>mdb.lock.timeout：等待锁的超时毫秒数，默认0为不超时</li>
+ *     <li>mdb.xid.mmap：为SYNC或ASYNC时使用 MappedTransactionManager 及对应的刷盘策略，未设置时使用 MDBTransactionManager</li>
+ * </ul>
+ *
  * @author mxp
  * @date 2023/4/20 17:30
  */
@@ -18,6 +29,14 @@ public class SafeCheck {
 
     private static final String path = "E:\\code\\M-DB";
 
+    static final String MMAP = "mdb.mmap";
+
+    static final String XID_MMAP = "mdb.xid.mmap";
+
+    static final String LOCK_POLICY = "mdb.lock.policy";
+
+    static final String LOCK_TIMEOUT = "mdb.lock.timeout";
+
     public static TableManager before() {
         File file = new File(path + File.separator + MDBTransactionManager.XID_NAME);
         if (file.exists()) {
@@ -27,19 +46,29 @@ public class SafeCheck {
     }
 
     private static TableManager create() {
-        MDBTransactionManager tm = MDBTransactionManager.create(path);
-        DataManager dataManager = DataManagerImpl.create(path, 100000, tm);
-        VersionManager versionManager = new VersionManagerImpl(tm, dataManager);
+        String xidMmap = System.getProperty(XID_MMAP);
+        TransactionManager tm = xidMmap == null ? MDBTransactionManager.create(path)
+                : MappedTransactionManager.create(path, MappedTransactionManager.SyncPolicy.valueOf(xidMmap));
+        DataManager dataManager = DataManagerImpl.create(path, 100000, tm, Boolean.getBoolean(MMAP));
+        VersionManager versionManager = newVersionManager(tm, dataManager);
         return TableManagerImpl.create(path, versionManager, dataManager);
     }
 
     private static TableManager open() {
-        MDBTransactionManager tm = MDBTransactionManager.open(path);
-        DataManager dataManager = DataManagerImpl.open(path, 100000, tm);
-        VersionManager versionManager = new VersionManagerImpl(tm, dataManager);
+        String xidMmap = System.getProperty(XID_MMAP);
+        TransactionManager tm = xidMmap == null ? MDBTransactionManager.open(path)
+                : MappedTransactionManager.open(path, MappedTransactionManager.SyncPolicy.valueOf(xidMmap));
+        DataManager dataManager = DataManagerImpl.open(path, 100000, tm, Boolean.getBoolean(MMAP));
+        VersionManager versionManager = newVersionManager(tm, dataManager);
         return TableManagerImpl.open(path, versionManager, dataManager);
     }
 
+    private static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
+        LockTable.WaitPolicy policy = LockTable.WaitPolicy.valueOf(
+                System.getProperty(LOCK_POLICY, LockTable.WaitPolicy.DEADLOCK_DETECT.name()));
+        return new VersionManagerImpl(tm, dm, policy, Long.getLong(LOCK_TIMEOUT, 0));
+    }
+
     public static void safeClose(TableManager tableManager) {
         ((TableManagerImpl) tableManager).close();
     }
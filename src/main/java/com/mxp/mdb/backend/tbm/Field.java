@@ -116,6 +116,11 @@ public class Field {
         bt.insert(k, uid);
     }
 
+    public void remove(Object key, long uid) throws Exception {
+        long k = value2Uid(key);
+        bt.delete(k, uid);
+    }
+
     public static void typeCheck(String name) throws Exception {
         if (!allowFieldName.contains(name)) {
             throw Error.InvalidFieldException;
@@ -165,6 +170,13 @@ public class Field {
         return bt.searchRange(l, r);
     }
 
+    /**
+     * 逐个叶子扫描索引中的全部 uid，见 BTree.scanRange
+     */
+    public void scan(BTree.LeafVisitor visitor) throws Exception {
+        bt.scanRange(Long.MIN_VALUE, Long.MAX_VALUE, visitor);
+    }
+
     class ParseValueRes {
         Object v;
         int shift;
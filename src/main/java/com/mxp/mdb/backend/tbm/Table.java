@@ -6,6 +6,7 @@ import com.mxp.mdb.backend.utils.ArrayUtil;
 import com.mxp.mdb.backend.utils.Panic;
 import com.mxp.mdb.backend.utils.ParseStringRes;
 import com.mxp.mdb.backend.utils.Parser;
+import com.mxp.mdb.backend.vm.LockMode;
 import com.mxp.mdb.backend.vm.VersionManager;
 import com.mxp.mdb.common.error.Error;
 
@@ -16,6 +17,9 @@ import java.util.*;
  * 二进制结构如下：
  * [TableName][NextTable]
  * [Field1Uid][Field2Uid]...[FieldNUid]
+ * <p>
+ * 更新和删除对行加X锁，select for update/for share 对读到的行加X/S锁，普通的select只读快照，不加锁。
+ * 不加表锁：没有对整张表加S或X锁的操作，意向锁只会让同一张表的所有写者争用同一个锁项
  *
  * @author mxp
  * @date 2023/4/19 10:01
@@ -91,7 +95,9 @@ public class Table {
 
     public void insert(long xid, Insert insert) throws Exception {
         Map<String, Object> entry = string2Entry(insert.values);
-        long uid = ((TableManagerImpl) tbm).vm.insert(xid, entry2Raw(entry));
+        VersionManager vm = ((TableManagerImpl) tbm).vm;
+        // 没有索引的表中，数据不会被索引指向，清理沿数据页找到它们
+        long uid = hasIndex() ? vm.insert(xid, entry2Raw(entry)) : vm.insertUnindexed(xid, entry2Raw(entry));
         for (Field field : fields) {
             if (field.isIndexed()) {
                 field.insert(entry.get(field.fieldName), uid);
@@ -121,6 +127,9 @@ public class Table {
     }
 
     public String read(long xid, Select select) throws Exception {
+        if (select.forUpdate || select.forShare) {
+            return readForLock(xid, select);
+        }
         long[] uids = parseWhere(select.where);
         StringBuilder sb = new StringBuilder();
         VersionManager vm = ((TableManagerImpl) tbm).vm;
@@ -136,6 +145,59 @@ public class Table {
         return sb.toString();
     }
 
+    /**
+     * 对读到的行加锁后返回，已加的锁保持到事务结束
+     * 读到的版本在等待锁期间被其它事务更新或删除时，重新查找并加锁，返回的总是加锁时最新的版本；
+     * 可重复读的事务此时已因版本跳跃被回滚。
+     * 逐个读取版本不是原子的，更新事务可能恰好在读到它的新版本（未提交，不可见）和旧版本（已提交删除，不可见）之间提交，
+     * 因此读完后再检查一遍不可见的版本，有变为可见的就重来；
+     * 索引的查找同样不是原子的，查找期间提交的更新可能把新版本插到已扫过的叶子中，因此加锁后再查找一次，出现新的UID时重来
+     */
+    private String readForLock(long xid, Select select) throws Exception {
+        VersionManager vm = ((TableManagerImpl) tbm).vm;
+        LockMode mode = select.forUpdate ? LockMode.X : LockMode.S;
+        long[] uids = parseWhere(select.where);
+        while (true) {
+            StringBuilder sb = new StringBuilder();
+            long[] invisible = new long[uids.length];
+            int noInvisible = 0;
+            boolean changed = false;
+            for (long uid : uids) {
+                byte[] raw = vm.read(xid, uid);
+                if (raw == null) {
+                    invisible[noInvisible++] = uid;
+                    continue;
+                }
+                if (!vm.lock(xid, uid, mode)) {
+                    changed = true;
+                    break;
+                }
+                sb.append(printEntry(raw2Entry(raw))).append("\n");
+            }
+            for (int i = 0; i < noInvisible && !changed; ++i) {
+                changed = vm.read(xid, invisible[i]) != null;
+            }
+            long[] again = parseWhere(select.where);
+            if (!changed && containsAll(uids, again)) {
+                return sb.toString();
+            }
+            uids = again;
+        }
+    }
+
+    /**
+     * sub 中的UID是否都在 uids 中，会对 uids 排序
+     */
+    private static boolean containsAll(long[] uids, long[] sub) {
+        Arrays.sort(uids);
+        for (long uid : sub) {
+            if (Arrays.binarySearch(uids, uid) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     class CalWhereRes {
         long l0, r0, l1, r1;
         boolean single;
@@ -273,7 +335,10 @@ public class Table {
                 continue;
             }
 
-            vm.delete(xid, uid);
+            // 已被其它事务删除
+            if (!vm.delete(xid, uid)) {
+                continue;
+            }
             Map<String, Object> entry = raw2Entry(raw);
             entry.put(update.fieldName, update.value);
             raw = entry2Raw(entry);
@@ -301,6 +366,54 @@ public class Table {
         return count;
     }
 
+    boolean hasIndex() {
+        for (Field field : fields) {
+            if (field.isIndexed()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 沿第一个索引逐个叶子扫描全部版本，将所有事务都看不到的版本从每个索引中删除，再将其数据标记为已释放
+     * 没有索引的表中的数据由 Vacuum 沿数据页清理，这里跳过
+     * @param horizon 见 VersionManager.vacuumHorizon
+     * @return 被清理的版本
+     */
+    List<Long> vacuum(long horizon) throws Exception {
+        List<Long> freed = new ArrayList<>();
+        Field index = null;
+        for (Field field : fields) {
+            if (field.isIndexed()) {
+                index = field;
+                break;
+            }
+        }
+        if (index == null) {
+            return freed;
+        }
+
+        TableManagerImpl tableManager = (TableManagerImpl) tbm;
+        index.scan(uids -> {
+            for (long uid : uids) {
+                byte[] raw = tableManager.vm.readDead(uid, horizon);
+                if (raw == null) {
+                    continue;
+                }
+                Map<String, Object> entry = raw2Entry(raw);
+                for (Field field : fields) {
+                    if (field.isIndexed()) {
+                        field.remove(entry.get(field.fieldName), uid);
+                    }
+                }
+                tableManager.dm.free(uid);
+                freed.add(uid);
+            }
+        });
+        return freed;
+    }
+
     @Override
     public String toString() {
         StringBuilder sb = new StringBuilder("{");
@@ -28,6 +28,7 @@ public class TableManagerImpl implements TableManager {
     private Map<String, Table> tableCache;
     private Map<Long, List<Table>> xidTableCache;
     private Lock lock;
+    private Vacuum vacuum;
 
     public TableManagerImpl(VersionManager vm, DataManager dm, Booter booter) {
         this.vm = vm;
@@ -36,6 +37,7 @@ public class TableManagerImpl implements TableManager {
         this.tableCache = new HashMap<>();
         this.xidTableCache = new HashMap<>();
         lock = new ReentrantLock();
+        vacuum = new Vacuum(this);
         loadTables();
     }
 
@@ -179,18 +181,42 @@ public class TableManagerImpl implements TableManager {
         return ("delete " + count).getBytes(StandardCharsets.UTF_8);
     }
 
+    /**
+     * 当前所有的表
+     */
+    List<Table> tables() {
+        lock.lock();
+        try {
+            return new ArrayList<>(tableCache.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 立即执行一次清理，见 Vacuum
+     */
+    public void vacuum() throws Exception {
+        vacuum.vacuum();
+    }
+
     public static TableManager create(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.create(path);
         booter.update(Parser.longToByte(0));
-        return new TableManagerImpl(vm, dm, booter);
+        TableManagerImpl tableManager = new TableManagerImpl(vm, dm, booter);
+        tableManager.vacuum.start();
+        return tableManager;
     }
 
     public static TableManager open(String path, VersionManager vm, DataManager dm) {
         Booter booter = Booter.open(path);
-        return new TableManagerImpl(vm, dm, booter);
+        TableManagerImpl tableManager = new TableManagerImpl(vm, dm, booter);
+        tableManager.vacuum.start();
+        return tableManager;
     }
 
     public void close() {
+        vacuum.stop();
         dm.closeDataManager();
 
     }
@@ -0,0 +1,157 @@
+package com.mxp.mdb.backend.tbm;
+
+import com.mxp.mdb.backend.utils.Panic;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 后台清理已死的版本
+ * 更新是删除加插入，删除只设置 XMAX，旧版本会一直留在页面和索引中。
+ * 清理定期沿每张表的第一个索引逐个叶子扫描版本，对所有事务都不可见的版本先从表的每个索引中删除，再将数据标记为已释放。
+ * 没有索引的表中的数据插入时就标记为没有索引指向，清理沿数据页找到其中已死的版本直接释放，见 DataItem.FLAG_UNINDEXED。
+ * <p>
+ * 清理时仍在进行的事务可能已从索引中查到这些 uid，数据的空间要等这些事务都结束后才能复用，否则同一个 uid 会指向新插入的数据。
+ * 之后的清理回收位于页尾的这些数据，页面的空闲位置前移并重新登记到页面索引。
+ * uid 即数据在页面中的位置，不能移动数据来整理页面中间的空间，页中间的已释放数据要等其后的数据都被释放后才能回收。
+ * 已释放的标记经由日志写入页面，pending 和 freed 只在内存中，重启后由 DataManager.takeFreed 重新找到全部已释放的数据，
+ * 此时没有事务会访问它们，都直接放入 freed。
+ */
+class Vacuum {
+
+    /**
+     * 清理的间隔
+     */
+    private static final long VACUUM_INTERVAL_SECONDS = 60;
+
+    static class Batch {
+        /**
+         * 清理结束时最大的活跃事务，可能查到这批 uid 的事务都不大于它
+         */
+        long lastActive;
+        List<Long> uids;
+    }
+
+    private final TableManagerImpl tbm;
+
+    /**
+     * 已清理、等待可能引用它们的事务结束的数据，按清理的顺序排列
+     */
+    private final Deque<Batch> pending;
+
+    /**
+     * 已没有事务引用、等待回收的数据，页号到页内位置
+     */
+    private final Map<Integer, Set<Short>> freed;
+
+    private ScheduledExecutorService executor;
+
+    Vacuum(TableManagerImpl tbm) {
+        this.tbm = tbm;
+        pending = new ArrayDeque<>();
+        freed = new HashMap<>(tbm.dm.takeFreed());
+    }
+
+    void start() {
+        executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "vacuum");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                vacuum();
+            } catch (Exception e) {
+                Panic.panic(e);
+            }
+        }, VACUUM_INTERVAL_SECONDS, VACUUM_INTERVAL_SECONDS, TimeUnit.SECONDS);
+    }
+
+    void stop() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdown();
+        try {
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 先回收之前清理的、已没有事务引用的数据，再清理新的已死版本
+     */
+    synchronized void vacuum() throws Exception {
+        reclaim();
+
+        long horizon = tbm.vm.vacuumHorizon();
+        List<Long> uids = new ArrayList<>();
+        boolean unindexed = false;
+        for (Table table : tbm.tables()) {
+            uids.addAll(table.vacuum(horizon));
+            unindexed |= !table.hasIndex();
+        }
+        if (unindexed) {
+            uids.addAll(vacuumUnindexed(horizon));
+        }
+        if (!uids.isEmpty()) {
+            Batch batch = new Batch();
+            batch.lastActive = tbm.vm.lastActive();
+            batch.uids = uids;
+            pending.addLast(batch);
+        }
+    }
+
+    /**
+     * 逐页找出没有索引指向的数据，释放其中已死的版本
+     * 没有索引的表不能带条件查询、更新和删除，其中已死的版本只有被回滚的插入
+     */
+    private List<Long> vacuumUnindexed(long horizon) throws Exception {
+        List<Long> uids = new ArrayList<>();
+        int pageNumber = tbm.dm.getPageNumber();
+        for (int pageNo = 2; pageNo <= pageNumber; ++pageNo) {
+            for (long uid : tbm.dm.unindexed(pageNo)) {
+                if (tbm.vm.readDead(uid, horizon) != null) {
+                    tbm.dm.free(uid);
+                    uids.add(uid);
+                }
+            }
+        }
+        return uids;
+    }
+
+    /**
+     * 所有活跃事务都大于一批的 lastActive 时，这批数据不会再被访问
+     * 回收不在页尾的数据留到之后，其后的数据都被清理时再回收
+     */
+    private void reclaim() throws Exception {
+        long horizon = tbm.vm.vacuumHorizon();
+        while (!pending.isEmpty() && pending.peekFirst().lastActive < horizon) {
+            for (long uid : pending.pollFirst().uids) {
+                short offset = (short) (uid & ((1 << 16) - 1));
+                int pageNo = (int) (uid >>> 32);
+                freed.computeIfAbsent(pageNo, k -> new HashSet<>()).add(offset);
+            }
+        }
+
+        Iterator<Map.Entry<Integer, Set<Short>>> iterator = freed.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<Integer, Set<Short>> entry = iterator.next();
+            tbm.dm.reclaim(entry.getKey(), entry.getValue());
+            if (entry.getValue().isEmpty()) {
+                iterator.remove();
+            }
+        }
+    }
+}
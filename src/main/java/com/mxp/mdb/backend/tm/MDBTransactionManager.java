@@ -9,6 +9,8 @@ import java.io.IOException;
 import java.io.RandomAccessFile;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -24,6 +26,15 @@ import java.util.concurrent.locks.ReentrantLock;
  * XID 文件给每个事务分配了一个字节的空间，用来保存其状态。
  * 同时，在 XID 文件的头部，还保存了一个 8 字节的数字，记录了这个 XID 文件管理的事务的个数。
  * 于是，事务 xid 在文件中的状态就存储在 (xid-1)+8 字节处，xid-1 是因为 xid 0（Super XID） 的状态不需要记录。
+ * <p>
+ * 打开时将所有事务的状态读入内存中的 XidStatusTable，查询状态不再读文件也不加锁。
+ * 提交和回滚先写文件，多个并发的状态修改合并为一次刷盘，刷盘后才修改内存中的状态，
+ * 其它事务看到的已提交状态都已持久化。
+ * <p>
+ * XID 由 AtomicLong 分配，不加锁。XID Header 记录的是已预留的 XID 上限，每次预留 XID_BLOCK 个，
+ * 预留时扩展文件并刷盘 Header，分配出的 XID 都不超过已持久化的上限，崩溃后不会被重复分配。
+ * 新事务的状态即文件扩展出的0，begin 不再写文件。崩溃后预留但未使用的 XID 保持 active，
+ * 它们没有日志也不会出现在数据中；正常关闭时 Header 和文件长度收缩到实际分配的 XID。
  *
  * @author mxp
  * @date 2023/4/6 19:32
@@ -48,16 +59,54 @@ public class MDBTransactionManager implements TransactionManager {
     private static final byte FIELD_TRAN_COMMITTED = 1;
     private static final byte FIELD_TRAN_ROLLBACK = 2;
 
+    /**
+     * 每次预留的XID个数
+     */
+    private static final int XID_BLOCK = 1 << 12;
+
     private final RandomAccessFile file;
     private final FileChannel fc;
-    private long xidCounter;
+    /**
+     * 已持久化在XID Header中的预留上限
+     */
+    private volatile long xidCounter;
+
+    /**
+     * 最后分配的XID
+     */
+    private final AtomicLong lastXid;
+
+    /**
+     * 预留XID互斥
+     */
     private final Lock counterLock;
 
+    private final XidStatusTable statusTable;
+
+    /**
+     * 已完成的状态写入个数，写入完成后才递增，刷盘开始时读到的值之前的写入都会被这次刷盘持久化
+     */
+    private final AtomicLong writeSeq;
+
+    /**
+     * 已持久化的写入个数，以及是否有线程正在刷盘
+     */
+    private long forcedSeq;
+    private boolean forcing;
+    private final Lock forceLock;
+    private final Condition forcedCond;
+
     public MDBTransactionManager(RandomAccessFile raf, FileChannel fc) {
         this.file = raf;
         this.fc = fc;
         counterLock = new ReentrantLock();
+        statusTable = new XidStatusTable();
+        writeSeq = new AtomicLong(0);
+        forceLock = new ReentrantLock();
+        forcedCond = forceLock.newCondition();
         checkXidCounter();
+        loadStatus();
+        lastXid = new AtomicLong(xidCounter);
     }
 
     /**
@@ -65,21 +114,36 @@ public class MDBTransactionManager implements TransactionManager {
      */
     public static final String XID_NAME = "mdb.xid";
 
+    /**
+     * 分配出的XID超过预留上限时预留下一块，其余情况不加锁也不写文件
+     * @return
+     */
     @Override
     public long begin() {
+        long xid = lastXid.incrementAndGet();
+        if (xid > xidCounter) {
+            reserve(xid);
+        }
+        return xid;
+    }
+
+    /**
+     * 预留XID直到xid被包含在内：先扩展文件，再更新Header并刷盘
+     * @param xid
+     */
+    private void reserve(long xid) {
         counterLock.lock();
         try {
-            long xid = xidCounter + 1;
-            updateXID(xid, FIELD_TRAN_ACTIVE);
-            incrXidCounter();
-            return xid;
+            while (xidCounter < xid) {
+                writeXidCounter(xidCounter + XID_BLOCK);
+            }
         } finally {
             counterLock.unlock();
         }
     }
 
     /**
-     * 更新xid事务的状态为status
+     * 更新xid事务的状态为status，持久化后再修改内存中的状态
      * @param xid
      * @param status
      */
@@ -89,81 +153,160 @@ public class MDBTransactionManager implements TransactionManager {
         tmp[0] = status;
         ByteBuffer buf = ByteBuffer.wrap(tmp);
         try {
-            fc.position(offset);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        try {
-            fc.force(false);
+            fc.write(buf, offset);
         } catch (IOException e) {
             Panic.panic(e);
         }
+        force(writeSeq.incrementAndGet());
+        statusTable.set(xid, status);
     }
 
     /**
-     * 将XID加一，并更新XID Header
+     * 等待第seq个写入持久化
+     * 没有线程在刷盘时由当前线程刷盘，否则等待进行中的刷盘结束，一次刷盘持久化开始时已完成的全部写入
+     * @param seq
      */
-    private void incrXidCounter() {
-        ++xidCounter;
-        ByteBuffer buf = ByteBuffer.wrap(Parser.longToByte(xidCounter));
+    private void force(long seq) {
+        forceLock.lock();
         try {
-            fc.position(0);
-            fc.write(buf);
-        } catch (IOException e) {
-            Panic.panic(e);
+            while (forcedSeq < seq) {
+                if (forcing) {
+                    forcedCond.awaitUninterruptibly();
+                    continue;
+                }
+                forcing = true;
+                long target = writeSeq.get();
+                forceLock.unlock();
+                try {
+                    fc.force(false);
+                } catch (IOException e) {
+                    Panic.panic(e);
+                } finally {
+                    forceLock.lock();
+                    forcing = false;
+                }
+                forcedSeq = Math.max(forcedSeq, target);
+                forcedCond.signalAll();
+            }
+        } finally {
+            forceLock.unlock();
         }
+    }
+
+    /**
+     * 将文件长度调整为counter个事务，并更新XID Header
+     * 扩展时先扩展文件再写Header，收缩时先写Header再截断，文件总不短于Header计算出的长度
+     * @param counter
+     */
+    private void writeXidCounter(long counter) {
+        ByteBuffer buf = ByteBuffer.wrap(Parser.longToByte(counter));
         try {
-            fc.force(false);
+            if (counter > xidCounter) {
+                file.setLength(getXidPosition(counter + 1));
+                fc.write(buf, 0);
+            } else {
+                fc.write(buf, 0);
+                file.setLength(getXidPosition(counter + 1));
+            }
         } catch (IOException e) {
             Panic.panic(e);
         }
+        force(writeSeq.incrementAndGet());
+        xidCounter = counter;
     }
 
+    /**
+     * 不同事务的状态写在文件的不同位置，无需互斥，并发的提交共享一次刷盘
+     * @param xid
+     */
     @Override
     public void commit(long xid) {
-        counterLock.lock();
-        try {
-            updateXID(xid, FIELD_TRAN_COMMITTED);
-        } finally {
-            counterLock.unlock();
-        }
+        updateXID(xid, FIELD_TRAN_COMMITTED);
     }
 
     @Override
     public void rollback(long xid) {
-        counterLock.lock();
-        try {
-            updateXID(xid, FIELD_TRAN_ROLLBACK);
-        } finally {
-            counterLock.unlock();
-        }
+        updateXID(xid, FIELD_TRAN_ROLLBACK);
     }
 
     @Override
     public boolean isActive(long xid) {
+        if (xid == SUPER_XID) {
+            return false;
+        }
         return checkXID(xid, FIELD_TRAN_ACTIVE);
     }
 
     @Override
     public boolean isCommitted(long xid) {
+        if (xid == SUPER_XID) {
+            return true;
+        }
         return checkXID(xid, FIELD_TRAN_COMMITTED);
     }
 
     @Override
     public boolean isRollback(long xid) {
+        if (xid == SUPER_XID) {
+            return false;
+        }
         return checkXID(xid, FIELD_TRAN_ROLLBACK);
     }
 
+    /**
+     * 内存中的状态在持久化后才修改，能查询到的结束状态都已持久化
+     */
+    @Override
+    public boolean isDurable(long xid) {
+        return true;
+    }
+
+    /**
+     * 将预留上限收缩到实际分配的XID
+     */
     @Override
     public void close() throws IOException {
+        counterLock.lock();
+        try {
+            writeXidCounter(lastXid.get());
+        } finally {
+            counterLock.unlock();
+        }
         file.close();
         fc.close();
     }
 
+    /**
+     * 将XID文件中所有事务的状态读入内存
+     */
+    private void loadStatus() {
+        ByteBuffer buf = ByteBuffer.allocate(1 << 16);
+        long xid = 1;
+        while (xid <= xidCounter) {
+            buf.clear();
+            buf.limit((int) Math.min(buf.capacity(), xidCounter - xid + 1));
+            try {
+                while (buf.hasRemaining()) {
+                    if (fc.read(buf, getXidPosition(xid) + buf.position()) < 0) {
+                        Panic.panic(Error.BadXIDFileException);
+                    }
+                }
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+            for (int i = 0; i < buf.limit(); ++i, ++xid) {
+                byte status = buf.get(i);
+                if (status != FIELD_TRAN_ACTIVE) {
+                    statusTable.set(xid, status);
+                }
+            }
+        }
+    }
+
     /**
      * 检查XID文件是否合法
      * 读取XID_FILE_HEADER中的xidcounter，根据它计算文件的理论长度，对比实际长度
+     * 预留XID时在写Header前崩溃，文件会比理论长度长，多出的部分还未被分配，截断即可
      */
     private void checkXidCounter() {
         long fileLen = 0;
@@ -185,9 +328,16 @@ public class MDBTransactionManager implements TransactionManager {
         }
         this.xidCounter = Parser.parseLong(buf.array());
         long end = getXidPosition(this.xidCounter + 1);
-        if (end != fileLen) {
+        if (end > fileLen) {
             Panic.panic(Error.BadXIDFileException);
         }
+        if (end < fileLen) {
+            try {
+                file.setLength(end);
+            } catch (IOException e) {
+                Panic.panic(e);
+            }
+        }
     }
 
     /**
@@ -200,21 +350,13 @@ public class MDBTransactionManager implements TransactionManager {
     }
 
     /**
-     * 检测XID事务是否处于status状态
+     * 检测XID事务是否处于status状态，只读取内存中的状态
      * @param xid
      * @param status
      * @return
      */
     private boolean checkXID(long xid, byte status) {
-        long xidPosition = getXidPosition(xid);
-        ByteBuffer buffer = ByteBuffer.allocate(XID_FIELD_SIZE);
-        try {
-            fc.position(xidPosition);
-            fc.read(buffer);
-        } catch (IOException e) {
-            Panic.panic(e);
-        }
-        return status == buffer.array()[0];
+        return status == statusTable.get(xid);
     }
 
     /**
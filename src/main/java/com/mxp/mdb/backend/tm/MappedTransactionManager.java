@@ -0,0 +1,361 @@
+package com.mxp.mdb.backend.tm;
+
+import com.mxp.mdb.backend.utils.Panic;
+import com.mxp.mdb.common.error.Error;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 基于文件映射的事务管理器，XID 文件格式与 MDBTransactionManager 相同
+ * 状态的读写都直接访问映射区域，不经过系统调用。文件按 CHUNK_SIZE 分块映射，位置按long计算，
+ * 文件增长时只映射新的块，已有的映射不会被替换，文件再大也不会因int溢出读错位置。
+ * 预先扩展出的部分全为0，所以打开时文件可以比 XID Header 计算出的长度更长，正常关闭时截断到实际长度。
+ * <p>
+ * 与 MDBTransactionManager 相同，XID 由 AtomicLong 分配，XID Header 记录已刷盘的预留上限，崩溃后事务ID不会被重复分配；
+ * 提交和回滚是否刷盘由 SyncPolicy 决定。写入映射的状态立即对其它事务可见。
+ */
+public class MappedTransactionManager implements TransactionManager {
+
+    /**
+     * 提交和回滚的刷盘策略
+     */
+    public enum SyncPolicy {
+        /**
+         * 返回前刷盘，返回后状态已持久化
+         */
+        SYNC,
+        /**
+         * 不等待刷盘，由后台线程每隔 FORCE_INTERVAL_MILLIS 刷盘一次，关闭时再刷盘
+         * 崩溃后最近的提交可能丢失，这些事务被当作未完成，由恢复撤销其修改
+         */
+        ASYNC
+    }
+
+    private static final int LEN_XID_HEADER_LENGTH = 8;
+    private static final int XID_FIELD_SIZE = 1;
+
+    private static final byte FIELD_TRAN_ACTIVE = 0;
+    private static final byte FIELD_TRAN_COMMITTED = 1;
+    private static final byte FIELD_TRAN_ROLLBACK = 2;
+
+    /**
+     * 每块映射1MB，文件按块增长
+     */
+    private static final int CHUNK_BITS = 20;
+    private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+
+    /**
+     * ASYNC策略下后台刷盘的间隔
+     */
+    private static final long FORCE_INTERVAL_MILLIS = 1000;
+
+    /**
+     * 每次预留的XID个数
+     */
+    private static final int XID_BLOCK = 1 << 12;
+
+    private final RandomAccessFile file;
+    private final FileChannel fc;
+    private final SyncPolicy policy;
+
+    /**
+     * 已持久化在XID Header中的预留上限
+     */
+    private volatile long xidCounter;
+
+    /**
+     * 最后分配的XID
+     */
+    private final AtomicLong lastXid;
+
+    private final Lock counterLock;
+
+    /**
+     * 各块的映射，增长时复制数组并加入新的块
+     */
+    private volatile MappedByteBuffer[] chunks;
+
+    /**
+     * 状态已写入映射但还未刷盘的事务
+     */
+    private final Set<Long> syncing;
+
+    /**
+     * ASYNC策略下写状态持有读锁，后台刷盘取 syncing 的快照时持有写锁，快照中的事务的状态都已写入映射
+     */
+    private final ReadWriteLock snapshotLock;
+
+    private ScheduledExecutorService flusher;
+
+    public MappedTransactionManager(RandomAccessFile raf, FileChannel fc, SyncPolicy policy) {
+        this.file = raf;
+        this.fc = fc;
+        this.policy = policy;
+        counterLock = new ReentrantLock();
+        syncing = ConcurrentHashMap.newKeySet();
+        snapshotLock = new ReentrantReadWriteLock();
+        chunks = new MappedByteBuffer[0];
+        checkXidCounter();
+        lastXid = new AtomicLong(xidCounter);
+        if (policy == SyncPolicy.ASYNC) {
+            startFlusher();
+        }
+    }
+
+    private void startFlusher() {
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "xid-flusher");
+            thread.setDaemon(true);
+            return thread;
+        });
+        flusher.scheduleWithFixedDelay(this::forceChunks,
+                FORCE_INTERVAL_MILLIS, FORCE_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 刷盘所有映射，之前已写入状态的事务随之持久化，从 syncing 中移除
+     */
+    private void forceChunks() {
+        Long[] written;
+        snapshotLock.writeLock().lock();
+        try {
+            written = syncing.toArray(new Long[0]);
+        } finally {
+            snapshotLock.writeLock().unlock();
+        }
+        if (written.length == 0) {
+            return;
+        }
+        for (MappedByteBuffer chunk : chunks) {
+            chunk.force();
+        }
+        for (Long xid : written) {
+            syncing.remove(xid);
+        }
+    }
+
+    @Override
+    public long begin() {
+        long xid = lastXid.incrementAndGet();
+        if (xid > xidCounter) {
+            reserve(xid);
+        }
+        return xid;
+    }
+
+    /**
+     * 预留XID直到xid被包含在内，新事务的状态即映射中扩展出的0，只需刷盘Header
+     * @param xid
+     */
+    private void reserve(long xid) {
+        counterLock.lock();
+        try {
+            while (xidCounter < xid) {
+                long counter = xidCounter + XID_BLOCK;
+                ensureMapped(getXidPosition(counter + 1));
+                MappedByteBuffer header = chunks[0];
+                header.putLong(0, counter);
+                header.force(0, LEN_XID_HEADER_LENGTH);
+                xidCounter = counter;
+            }
+        } finally {
+            counterLock.unlock();
+        }
+    }
+
+    /**
+     * 保证文件的前length字节已被映射，文件长度不足时扩展到块的边界
+     * 调用方需持有counterLock，或在构造时调用
+     */
+    private void ensureMapped(long length) {
+        MappedByteBuffer[] cur = chunks;
+        int count = (int) ((length + CHUNK_SIZE - 1) >>> CHUNK_BITS);
+        if (cur.length >= count) {
+            return;
+        }
+        MappedByteBuffer[] grown = Arrays.copyOf(cur, count);
+        try {
+            long size = (long) count << CHUNK_BITS;
+            if (file.length() < size) {
+                file.setLength(size);
+            }
+            for (int i = cur.length; i < count; ++i) {
+                grown[i] = fc.map(FileChannel.MapMode.READ_WRITE, (long) i << CHUNK_BITS, CHUNK_SIZE);
+            }
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        chunks = grown;
+    }
+
+    private void updateXID(long xid, byte status) {
+        long position = getXidPosition(xid);
+        MappedByteBuffer chunk = chunks[(int) (position >>> CHUNK_BITS)];
+        int offset = (int) (position & (CHUNK_SIZE - 1));
+        if (policy == SyncPolicy.SYNC) {
+            syncing.add(xid);
+            chunk.put(offset, status);
+            chunk.force(offset, XID_FIELD_SIZE);
+            syncing.remove(xid);
+        } else {
+            snapshotLock.readLock().lock();
+            try {
+                syncing.add(xid);
+                chunk.put(offset, status);
+            } finally {
+                snapshotLock.readLock().unlock();
+            }
+        }
+    }
+
+    @Override
+    public void commit(long xid) {
+        updateXID(xid, FIELD_TRAN_COMMITTED);
+    }
+
+    @Override
+    public void rollback(long xid) {
+        updateXID(xid, FIELD_TRAN_ROLLBACK);
+    }
+
+    @Override
+    public boolean isActive(long xid) {
+        if (xid == SUPER_XID) {
+            return false;
+        }
+        return checkXID(xid, FIELD_TRAN_ACTIVE);
+    }
+
+    @Override
+    public boolean isCommitted(long xid) {
+        if (xid == SUPER_XID) {
+            return true;
+        }
+        return checkXID(xid, FIELD_TRAN_COMMITTED);
+    }
+
+    @Override
+    public boolean isRollback(long xid) {
+        if (xid == SUPER_XID) {
+            return false;
+        }
+        return checkXID(xid, FIELD_TRAN_ROLLBACK);
+    }
+
+    /**
+     * 状态写入映射后，SYNC策略下在本次刷盘后、ASYNC策略下在下一次后台刷盘后持久化
+     */
+    @Override
+    public boolean isDurable(long xid) {
+        return !syncing.contains(xid);
+    }
+
+    /**
+     * 超出映射范围的事务尚未分配，视为active
+     */
+    private boolean checkXID(long xid, byte status) {
+        long position = getXidPosition(xid);
+        MappedByteBuffer[] cur = chunks;
+        long chunk = position >>> CHUNK_BITS;
+        byte s = chunk < cur.length ? cur[(int) chunk].get((int) (position & (CHUNK_SIZE - 1))) : FIELD_TRAN_ACTIVE;
+        return status == s;
+    }
+
+    /**
+     * 将预留上限收缩到实际分配的XID，刷盘后将文件截断到实际长度
+     * 部分系统不允许截断仍被映射的文件，失败时保留预先扩展的空间，下次打开时会被忽略
+     */
+    @Override
+    public void close() throws IOException {
+        if (flusher != null) {
+            flusher.shutdown();
+            try {
+                flusher.awaitTermination(1, TimeUnit.MINUTES);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        counterLock.lock();
+        try {
+            xidCounter = lastXid.get();
+            chunks[0].putLong(0, xidCounter);
+            for (MappedByteBuffer chunk : chunks) {
+                chunk.force();
+            }
+            try {
+                file.setLength(getXidPosition(xidCounter + 1));
+            } catch (IOException ignored) {
+            }
+        } finally {
+            counterLock.unlock();
+        }
+        file.close();
+        fc.close();
+    }
+
+    /**
+     * 读取XID Header中的xidCounter，文件长度不能小于由它计算出的长度
+     */
+    private void checkXidCounter() {
+        long fileLen = 0;
+        try {
+            fileLen = file.length();
+        } catch (IOException e) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        if (fileLen < LEN_XID_HEADER_LENGTH) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+        ensureMapped(fileLen);
+        xidCounter = chunks[0].getLong(0);
+        if (xidCounter < 0 || getXidPosition(xidCounter + 1) > fileLen) {
+            Panic.panic(Error.BadXIDFileException);
+        }
+    }
+
+    private long getXidPosition(long xid) {
+        return LEN_XID_HEADER_LENGTH + (xid - 1) * XID_FIELD_SIZE;
+    }
+
+    public static MappedTransactionManager create(String path, SyncPolicy policy) {
+        MappedTransactionManager transactionManager = null;
+        try {
+            File file = new File(path + File.separator + MDBTransactionManager.XID_NAME);
+            if (!file.exists()) {
+                file.createNewFile();
+            }
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            raf.setLength(LEN_XID_HEADER_LENGTH);
+            transactionManager = new MappedTransactionManager(raf, raf.getChannel(), policy);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return transactionManager;
+    }
+
+    public static MappedTransactionManager open(String path, SyncPolicy policy) {
+        MappedTransactionManager transactionManager = null;
+        try {
+            RandomAccessFile raf = new RandomAccessFile(path + File.separator + MDBTransactionManager.XID_NAME, "rw");
+            transactionManager = new MappedTransactionManager(raf, raf.getChannel(), policy);
+        } catch (IOException e) {
+            Panic.panic(e);
+        }
+        return transactionManager;
+    }
+}
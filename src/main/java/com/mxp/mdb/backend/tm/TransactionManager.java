@@ -53,6 +53,14 @@ public interface TransactionManager {
      */
     boolean isRollback(long xid);
 
+    /**
+     * 查询一个已结束事务的状态是否已持久化
+     * 只有已持久化的状态才能作为提示位记录到数据中，否则崩溃后提示位可能与事务的实际状态不符
+     * @param xid 事务ID
+     * @return true-已持久化
+     */
+    boolean isDurable(long xid);
+
     /**
      * 关闭事务管理器
      * @throws IOException
@@ -0,0 +1,80 @@
+package com.mxp.mdb.backend.tm;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * 内存中的事务状态表
+ * 每个事务的状态占2位，每个long保存32个事务，按块分配，块数不够时复制块数组扩容，已有的块不会移动。
+ * 读取只有一次volatile读，不加锁；同一个long中不同事务的状态修改用CAS完成。
+ * 超出已分配范围的事务状态为0，即active，与XID文件中未写入的状态一致。
+ */
+class XidStatusTable {
+
+    private static final int BITS_PER_XID = 2;
+    private static final int XIDS_PER_WORD = Long.SIZE / BITS_PER_XID;
+    private static final long STATUS_MASK = (1L << BITS_PER_XID) - 1;
+
+    /**
+     * 每块1024个long，即32768个事务
+     */
+    private static final int WORDS_PER_CHUNK = 1 << 10;
+    private static final int XIDS_PER_CHUNK = WORDS_PER_CHUNK * XIDS_PER_WORD;
+
+    private volatile AtomicLongArray[] chunks;
+
+    XidStatusTable() {
+        chunks = new AtomicLongArray[0];
+    }
+
+    byte get(long xid) {
+        AtomicLongArray[] cs = chunks;
+        int chunk = (int) (xid / XIDS_PER_CHUNK);
+        if (chunk >= cs.length) {
+            return 0;
+        }
+        int index = (int) (xid % XIDS_PER_CHUNK);
+        long word = cs[chunk].get(index / XIDS_PER_WORD);
+        return (byte) ((word >>> shift(index)) & STATUS_MASK);
+    }
+
+    void set(long xid, byte status) {
+        ensureCapacity(xid);
+        AtomicLongArray words = chunks[(int) (xid / XIDS_PER_CHUNK)];
+        int index = (int) (xid % XIDS_PER_CHUNK);
+        int shift = shift(index);
+        int i = index / XIDS_PER_WORD;
+        while (true) {
+            long old = words.get(i);
+            long updated = (old & ~(STATUS_MASK << shift)) | ((status & STATUS_MASK) << shift);
+            if (words.compareAndSet(i, old, updated)) {
+                return;
+            }
+        }
+    }
+
+    private static int shift(int index) {
+        return index % XIDS_PER_WORD * BITS_PER_XID;
+    }
+
+    /**
+     * 保证xid所在的块已分配
+     */
+    private void ensureCapacity(long xid) {
+        int chunk = (int) (xid / XIDS_PER_CHUNK);
+        if (chunk < chunks.length) {
+            return;
+        }
+        synchronized (this) {
+            AtomicLongArray[] cs = chunks;
+            if (chunk < cs.length) {
+                return;
+            }
+            AtomicLongArray[] grown = Arrays.copyOf(cs, chunk + 1);
+            for (int i = cs.length; i <= chunk; ++i) {
+                grown[i] = new AtomicLongArray(WORDS_PER_CHUNK);
+            }
+            chunks = grown;
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.mxp.mdb.backend.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 按绝对位置读写ByteBuffer，不修改其position和limit，多个线程可以共享同一个ByteBuffer
+ */
+public class BufferUtil {
+
+    public static void get(ByteBuffer src, int index, byte[] dst, int offset, int length) {
+        if (src.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + index, dst, offset, length);
+            return;
+        }
+        ByteBuffer dup = src.duplicate();
+        dup.clear();
+        dup.position(index);
+        dup.get(dst, offset, length);
+    }
+
+    public static void put(ByteBuffer dst, int index, byte[] src, int offset, int length) {
+        if (dst.hasArray()) {
+            System.arraycopy(src, offset, dst.array(), dst.arrayOffset() + index, length);
+            return;
+        }
+        ByteBuffer dup = dst.duplicate();
+        dup.clear();
+        dup.position(index);
+        dup.put(src, offset, length);
+    }
+
+    public static void put(ByteBuffer dst, int index, byte[] src) {
+        put(dst, index, src, 0, src.length);
+    }
+
+    public static byte[] copyOfRange(ByteBuffer src, int from, int to) {
+        byte[] res = new byte[to - from];
+        get(src, from, res, 0, res.length);
+        return res;
+    }
+
+    /**
+     * 拷贝length个字节，src和dst为同一个buffer时允许区间重叠
+     */
+    public static void copy(ByteBuffer src, int srcIndex, ByteBuffer dst, int dstIndex, int length) {
+        if (src.hasArray() && dst.hasArray()) {
+            System.arraycopy(src.array(), src.arrayOffset() + srcIndex, dst.array(), dst.arrayOffset() + dstIndex, length);
+            return;
+        }
+        if (src != dst || srcIndex + length <= dstIndex || dstIndex + length <= srcIndex) {
+            ByteBuffer from = src.duplicate();
+            from.clear();
+            from.position(srcIndex);
+            from.limit(srcIndex + length);
+            ByteBuffer to = dst.duplicate();
+            to.clear();
+            to.position(dstIndex);
+            to.put(from);
+            return;
+        }
+        // 同一个堆外buffer内的重叠区间，经过临时数组拷贝
+        put(dst, dstIndex, copyOfRange(src, srcIndex, srcIndex + length), 0, length);
+    }
+
+    /**
+     * 拷贝buffer从0到capacity的全部内容
+     */
+    public static byte[] toArray(ByteBuffer src) {
+        return copyOfRange(src, 0, src.capacity());
+    }
+}
@@ -4,10 +4,9 @@ import com.mxp.mdb.backend.common.SubArray;
 import com.mxp.mdb.backend.dm.dataItem.DataItem;
 import com.mxp.mdb.backend.tm.TransactionManager;
 import com.mxp.mdb.backend.utils.ArrayUtil;
+import com.mxp.mdb.backend.utils.BufferUtil;
 import com.mxp.mdb.backend.utils.Parser;
 
-import java.util.Arrays;
-
 /**
  * VM向上层抽象出Entry
  * Entry结构：
@@ -15,6 +14,10 @@ import java.util.Arrays;
  * XMIN 是创建该条记录（版本）的事务编号
  * XMAX 则是删除该条记录（版本）的事务编号
  * DATA 就是这条记录持有的数据。
+ * <p>
+ * XMIN 和 XMAX 的最高两位是提示位，记录该事务已提交或已回滚，事务ID用不到这两位。
+ * 读者第一次查到事务的结束状态并且该状态已持久化时设置提示位，之后的读取不再查询 TransactionManager。
+ * 提示位不写日志，丢失后只会重新查询；写入日志的数据中带有的提示位也都是已持久化的状态，重做和撤销不会产生错误的提示位。
  *
  * @author mxp
  * @date 2023/4/14 18:05
@@ -25,6 +28,10 @@ public class Entry {
     private static final int OFFSET_XMAX = OFFSET_XMIN + 8;
     private static final int OFFSET_DATA = OFFSET_XMAX + 8;
 
+    private static final long HINT_COMMITTED = 1L << 63;
+    private static final long HINT_ABORTED = 1L << 62;
+    private static final long XID_MASK = HINT_ABORTED - 1;
+
     private long uid;
     private DataItem dataItem;
     private VersionManager vm;
@@ -39,6 +46,9 @@ public class Entry {
 
     public static Entry loadEntry(VersionManager vm, long uid) throws Exception {
         DataItem item = ((VersionManagerImpl) vm).dm.read(uid);
+        if (item == null) {
+            return null;
+        }
         return newEntry(vm, item, uid);
     }
 
@@ -64,29 +74,80 @@ public class Entry {
         dataItem.rLock();
         try {
             SubArray subArray = dataItem.data();
-            byte[] data = new byte[subArray.end - subArray.start - OFFSET_DATA];
-            System.arraycopy(subArray.raw, subArray.start + OFFSET_DATA, data, 0, data.length);
-            return data;
+            return BufferUtil.copyOfRange(subArray.raw, subArray.start + OFFSET_DATA, subArray.end);
         } finally {
             dataItem.rUnLock();
         }
     }
 
     public long getXmin() {
+        return getXid(OFFSET_XMIN);
+    }
+
+    public long getXmax() {
+        return getXid(OFFSET_XMAX);
+    }
+
+    private long getXid(int offset) {
         dataItem.rLock();
         try {
             SubArray raw = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + OFFSET_XMIN, raw.start + OFFSET_XMAX));
+            return raw.raw.getLong(raw.start + offset) & XID_MASK;
         } finally {
             dataItem.rUnLock();
         }
     }
 
-    public long getXmax() {
+    /**
+     * 创建该版本的事务是否已提交
+     * @param tm
+     * @return
+     */
+    public boolean isXminCommitted(TransactionManager tm) {
+        return isCommitted(tm, OFFSET_XMIN);
+    }
+
+    /**
+     * 删除该版本的事务是否已提交，未被删除时返回false
+     * @param tm
+     * @return
+     */
+    public boolean isXmaxCommitted(TransactionManager tm) {
+        return isCommitted(tm, OFFSET_XMAX);
+    }
+
+    /**
+     * 优先读取提示位，没有提示位时查询TransactionManager，事务已结束且状态已持久化时设置提示位
+     * 提示位只在读锁内设置：不同读者写入的是同一个结果，写者持有写锁时不会有读者写入
+     */
+    private boolean isCommitted(TransactionManager tm, int offset) {
         dataItem.rLock();
         try {
             SubArray raw = dataItem.data();
-            return Parser.parseLong(Arrays.copyOfRange(raw.raw, raw.start + OFFSET_XMAX, raw.start + OFFSET_DATA));
+            int position = raw.start + offset;
+            long value = raw.raw.getLong(position);
+            if ((value & HINT_COMMITTED) != 0) {
+                return true;
+            }
+            if ((value & HINT_ABORTED) != 0) {
+                return false;
+            }
+            long xid = value & XID_MASK;
+            if (xid == TransactionManager.SUPER_XID) {
+                return offset == OFFSET_XMIN;
+            }
+            long hint = 0;
+            boolean committed = tm.isCommitted(xid);
+            if (committed) {
+                hint = HINT_COMMITTED;
+            } else if (tm.isRollback(xid)) {
+                hint = HINT_ABORTED;
+            }
+            if (hint != 0 && tm.isDurable(xid)) {
+                raw.raw.putLong(position, value | hint);
+                dataItem.page().setDirty(true);
+            }
+            return committed;
         } finally {
             dataItem.rUnLock();
         }
@@ -96,8 +157,7 @@ public class Entry {
         dataItem.before();
         try {
             SubArray raw = dataItem.data();
-            byte[] bytes = Parser.longToByte(xid);
-            System.arraycopy(bytes, 0, raw.raw, raw.start + OFFSET_XMAX, bytes.length);
+            raw.raw.putLong(raw.start + OFFSET_XMAX, xid);
         } finally {
             dataItem.after(xid);
         }
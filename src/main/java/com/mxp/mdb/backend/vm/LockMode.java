@@ -0,0 +1,49 @@
+package com.mxp.mdb.backend.vm;
+
+/**
+ * 锁模式
+ * 行锁只使用S和X。IS和IX是表锁的意向模式，表示将在表中的行上加S或X锁，表上的S和X锁住整张表；
+ * 目前没有操作对整张表加锁，因此也不加意向锁，见 Table。
+ * 相容矩阵：
+ * <pre>
+ *       IS  IX  S   X
+ *   IS  Y   Y   Y   N
+ *   IX  Y   Y   N   N
+ *   S   Y   N   Y   N
+ *   X   N   N   N   N
+ * </pre>
+ */
+public enum LockMode {
+    IS, IX, S, X;
+
+    private static final boolean[][] COMPATIBLE = {
+            {true, true, true, false},
+            {true, true, false, false},
+            {true, false, true, false},
+            {false, false, false, false}
+    };
+
+    public boolean isCompatible(LockMode other) {
+        return COMPATIBLE[ordinal()][other.ordinal()];
+    }
+
+    /**
+     * 持有this时再请求other是否不需要做任何事
+     */
+    public boolean covers(LockMode other) {
+        return this == other || this == X || other == IS;
+    }
+
+    /**
+     * 同时持有this和other所需的最弱模式，S与IX之间没有SIX，取X
+     */
+    public LockMode join(LockMode other) {
+        if (covers(other)) {
+            return this;
+        }
+        if (other.covers(this)) {
+            return other;
+        }
+        return X;
+    }
+}
@@ -1,221 +1,639 @@
 package com.mxp.mdb.backend.vm;
 
+import com.mxp.mdb.backend.common.ConcurrentLongObjectMap;
+import com.mxp.mdb.backend.common.LongObjectMap;
 import com.mxp.mdb.common.error.Error;
 
-import java.util.*;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.LockSupport;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.LongConsumer;
 
 /**
+ * 记录事务持有和等待的锁
+ * 锁住的是UID，可以是一个版本（行锁），也可以是表的UID（表锁，目前没有使用），模式见 LockMode。
+ * UID按哈希分到互不相关的分片，每个分片有自己的锁，只保护该分片中UID的持有者和FIFO等待队列。
+ * 等待的事务在分片锁外park，持有者释放时按队列顺序把锁授予与持有者和排在它前面、仍在等待的请求都相容的等待者再唤醒它们，
+ * 新的请求不会越过与它不相容的排队的请求；已持有该UID的事务升级时排在队首，只需与其它持有者相容。
+ * 分片和事务表都以long为键，获取和释放都不装箱。
+ * <p>
+ * 每个事务最多等待一个UID，等待者只被与它不相容的持有者和排在它前面、与它不相容的等待者阻塞。
+ * 加入等待队列时先发布自己正在进行的等待，再从自己出发沿阻塞关系搜索是否回到自己，每一步只持有一个分片锁；
+ * 形成环的最后一条边的加入者一定能看到环上其它的边，死锁总会被发现，不需要全局锁。
+ * <p>
+ * 发生冲突时的行为由 WaitPolicy 决定，除 NO_WAIT 外的等待都可以设置超时。
+ * 事务的年龄即XID，XID越小越老。
+ *
  * @author mxp
  * @date 2023/4/16 15:48
  */
 public class LockTable {
 
     /**
-     * 某个XID已经获得的资源的UID列表
+     * 请求的UID被其它事务以不相容的模式持有或有不相容的请求在排队时的处理策略
      */
-    private Map<Long, List<Long>> xid2uids;
+    public enum WaitPolicy {
+        /**
+         * 等待，加入等待会形成环时放弃
+         */
+        DEADLOCK_DETECT,
+        /**
+         * 不等待，直接放弃
+         */
+        NO_WAIT,
+        /**
+         * 比所有阻塞它的事务都老时等待，否则放弃，等待只会从老到新，不会形成环
+         */
+        WAIT_DIE,
+        /**
+         * 令阻塞它的更新的事务放弃，然后等待
+         * 被伤害的事务在等待时被唤醒并放弃，没有在等待的由 LockTable 的 woundHandler 立即回滚并释放锁
+         */
+        WOUND_WAIT
+    }
+
+    private static final int SHARD_BITS = 6;
+    private static final int SHARDS = 1 << SHARD_BITS;
 
     /**
-     * UID被某个XID持有
+     * 一个事务在一个UID上持有的锁，升级时修改mode
      */
-    private Map<Long, Long> uid2xid;
+    static class Grant {
+        final TxnLocks txn;
+        LockMode mode;
+        Grant next;
+
+        Grant(TxnLocks txn, LockMode mode, Grant next) {
+            this.txn = txn;
+            this.mode = mode;
+            this.next = next;
+        }
+    }
 
     /**
-     * 正在等待UID的XID列表
+     * 一个UID的持有者和等待队列，由所在分片的锁保护
      */
-    private Map<Long, List<Long>> uidWait2xids;
+    static class LockEntry {
+        final long uid;
+
+        /**
+         * 持有者链表，一般只有一个
+         */
+        Grant holders;
+
+        /**
+         * 等待者通过 Waiter.next 串成的FIFO队列，没有等待者时不分配任何对象
+         */
+        Waiter head;
+        Waiter tail;
+
+        LockEntry(long uid) {
+            this.uid = uid;
+        }
+
+        Grant find(TxnLocks txn) {
+            for (Grant g = holders; g != null; g = g.next) {
+                if (g.txn == txn) {
+                    return g;
+                }
+            }
+            return null;
+        }
+
+        /**
+         * 除txn外的持有者是否都与mode相容
+         */
+        boolean isCompatible(TxnLocks txn, LockMode mode) {
+            for (Grant g = holders; g != null; g = g.next) {
+                if (g.txn != txn && !g.mode.isCompatible(mode)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * 从队首到until（不含）的等待者中是否有与mode不相容的其它事务，until为null时检查整个队列
+         */
+        boolean conflictsWithWaiters(Waiter until, TxnLocks txn, LockMode mode) {
+            for (Waiter w = head; w != until; w = w.next) {
+                if (w.txn != txn && !w.mode.isCompatible(mode)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        void release(TxnLocks txn) {
+            Grant prev = null;
+            for (Grant g = holders; g != null; prev = g, g = g.next) {
+                if (g.txn != txn) {
+                    continue;
+                }
+                if (prev == null) {
+                    holders = g.next;
+                } else {
+                    prev.next = g.next;
+                }
+                return;
+            }
+        }
+
+        void enqueue(Waiter waiter) {
+            if (tail == null) {
+                head = waiter;
+            } else {
+                tail.next = waiter;
+            }
+            tail = waiter;
+        }
+
+        /**
+         * 升级排在其它升级之后、所有普通等待者之前
+         */
+        void enqueueUpgrade(Waiter waiter) {
+            Waiter prev = null;
+            for (Waiter w = head; w != null && w.upgrade; w = w.next) {
+                prev = w;
+            }
+            if (prev == null) {
+                waiter.next = head;
+                head = waiter;
+            } else {
+                waiter.next = prev.next;
+                prev.next = waiter;
+            }
+            if (waiter.next == null) {
+                tail = waiter;
+            }
+        }
+
+        void unlink(Waiter waiter) {
+            Waiter prev = null;
+            for (Waiter w = head; w != null; prev = w, w = w.next) {
+                if (w != waiter) {
+                    continue;
+                }
+                if (prev == null) {
+                    head = w.next;
+                } else {
+                    prev.next = w.next;
+                }
+                if (tail == w) {
+                    tail = prev;
+                }
+                w.next = null;
+                return;
+            }
+        }
+    }
+
+    static class Waiter {
+        final TxnLocks txn;
+        final LockEntry entry;
+        final LockMode mode;
+
+        /**
+         * 是否为已持有该UID的事务的升级
+         */
+        final boolean upgrade;
+        final Thread thread;
+        Waiter next;
+
+        /**
+         * 持有者释放时把锁授予等待者后置为true
+         */
+        volatile boolean granted;
+
+        Waiter(TxnLocks txn, LockEntry entry, LockMode mode, boolean upgrade, Thread thread) {
+            this.txn = txn;
+            this.entry = entry;
+            this.mode = mode;
+            this.upgrade = upgrade;
+            this.thread = thread;
+        }
+    }
 
     /**
-     * 正在等待资源的XID的线程
+     * 一个事务持有的UID和正在进行的等待
      */
-    private Map<Long, Thread> xid2waitThread;
+    static class TxnLocks {
+        final long xid;
+
+        /**
+         * 持有的UID，由事务自己的线程或把锁授予它的释放者在分片锁内追加，与 remove 以 TxnLocks 自身互斥
+         */
+        long[] uids = new long[4];
+        int size;
+
+        /**
+         * 已被 remove，之后不能再持有新的UID
+         */
+        volatile boolean removed;
+
+        /**
+         * 正在进行的等待，发布后其它事务的死锁检测可以沿它查找
+         */
+        volatile Waiter waiting;
+
+        /**
+         * 被更老的事务伤害，之后不能再获取锁
+         */
+        volatile boolean wounded;
+
+        TxnLocks(long xid) {
+            this.xid = xid;
+        }
+
+        /**
+         * @return 事务已被 remove 时返回false，调用方不能授予该UID
+         */
+        synchronized boolean hold(long uid) {
+            if (removed) {
+                return false;
+            }
+            if (size == uids.length) {
+                uids = Arrays.copyOf(uids, size << 1);
+            }
+            uids[size++] = uid;
+            return true;
+        }
+
+        /**
+         * 标记为已被 remove，返回此时持有的UID
+         */
+        synchronized long[] removeAll() {
+            removed = true;
+            return Arrays.copyOf(uids, size);
+        }
+    }
+
+    static class Shard {
+        final Lock lock = new ReentrantLock();
+        final LongObjectMap<LockEntry> entries = new LongObjectMap<>();
+    }
+
+    private final Shard[] shards;
+    private final ConcurrentLongObjectMap<TxnLocks> txns;
+    private final WaitPolicy policy;
 
     /**
-     * XID正在等待的UID
+     * WOUND_WAIT 下被伤害、但没有在等待的事务交给它回滚，它需要调用 remove 释放该事务的锁
      */
-    private Map<Long, Long> xid2waitUid;
+    private final LongConsumer woundHandler;
 
-    private Lock lock;
+    /**
+     * 等待的超时时间，0为不超时
+     */
+    private final long timeoutNanos;
 
     public LockTable() {
-        xid2uids = new HashMap<>();
-        uid2xid = new HashMap<>();
-        uidWait2xids = new HashMap<>();
-        xid2waitThread = new HashMap<>();
-        xid2waitUid = new HashMap<>();
-        lock = new ReentrantLock();
+        this(WaitPolicy.DEADLOCK_DETECT, 0, xid -> {
+        });
+    }
+
+    /**
+     * @param policy 冲突时的处理策略
+     * @param timeoutMillis 等待的超时时间，0为不超时
+     * @param woundHandler 回滚被伤害的正在执行的事务，见 WaitPolicy.WOUND_WAIT
+     */
+    public LockTable(WaitPolicy policy, long timeoutMillis, LongConsumer woundHandler) {
+        this.policy = policy;
+        this.woundHandler = woundHandler;
+        this.timeoutNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        shards = new Shard[SHARDS];
+        for (int i = 0; i < SHARDS; ++i) {
+            shards[i] = new Shard();
+        }
+        txns = new ConcurrentLongObjectMap<>();
+    }
+
+    private Shard shard(long uid) {
+        return shards[(int) ((uid * 0x9E3779B97F4A7C15L) >>> (Long.SIZE - SHARD_BITS))];
     }
 
     /**
-     * 不需要等待则返回null，否则返回锁对象
-     * 会造成死锁则抛出异常
+     * 以X模式获取uid
+     */
+    public void add(long xid, long uid) throws Exception {
+        add(xid, uid, LockMode.X);
+    }
+
+    /**
+     * 以mode获取uid，已持有较弱的模式时升级，冲突时按策略等待，返回时已持有
+     * 死锁、按策略放弃或被伤害时抛出 ConcurrentUpdateException，等待超时抛出 LockTimeoutException
      * @param xid
      * @param uid
+     * @param mode
      * @throws Exception
      */
-    public void add(long xid, long uid) throws Exception {
-        lock.lock();
+    public void add(long xid, long uid, LockMode mode) throws Exception {
+        TxnLocks txn = txns.get(xid);
+        if (txn == null) {
+            TxnLocks created = new TxnLocks(xid);
+            TxnLocks existing = txns.putIfAbsent(xid, created);
+            txn = existing != null ? existing : created;
+        }
+        if (txn.wounded) {
+            throw Error.ConcurrentUpdateException;
+        }
+        Shard shard = shard(uid);
+        Waiter waiter;
+        List<TxnLocks> wounded = null;
+        shard.lock.lock();
         try {
-            // 当前事务已经获取该资源
-            if (isInList(xid2uids, xid, uid)) {
+            LockEntry entry = shard.entries.get(uid);
+            if (entry == null) {
+                // 已被回滚并释放了锁的事务不能再持有新的UID
+                if (!txn.hold(uid)) {
+                    throw Error.ConcurrentUpdateException;
+                }
+                entry = new LockEntry(uid);
+                entry.holders = new Grant(txn, mode, null);
+                shard.entries.put(uid, entry);
                 return;
             }
-            // uid未被其它事务占用
-            if (!uid2xid.containsKey(uid)) {
-                uid2xid.put(uid, xid);
-                putIntoList(xid2uids, xid, uid);
+            Grant held = entry.find(txn);
+            LockMode target = held == null ? mode : held.mode.join(mode);
+            // 已持有不弱于mode的锁
+            if (held != null && target == held.mode) {
                 return;
             }
-            // uid被其它事务占用
-            // 向有向图中加入一条边
-            xid2waitUid.put(xid, uid);
-            putIntoList(uidWait2xids, uid, xid);
-            // 检测是否会发生死锁
-            if (hasDeadLock()) {
-                xid2waitUid.remove(xid);
-                removeFromList(uidWait2xids, uid, xid);
-                // 发生死锁
-                throw Error.DeadlockException;
+            // 升级只需与其它持有者相容，新的请求还不能越过与它不相容的排队的等待者
+            if (entry.isCompatible(txn, target) && (held != null || !entry.conflictsWithWaiters(null, txn, target))) {
+                if (held != null) {
+                    held.mode = target;
+                } else {
+                    if (!txn.hold(uid)) {
+                        throw Error.ConcurrentUpdateException;
+                    }
+                    entry.holders = new Grant(txn, target, entry.holders);
+                }
+                return;
+            }
+
+            waiter = new Waiter(txn, entry, target, held != null, Thread.currentThread());
+            if (waiter.upgrade) {
+                entry.enqueueUpgrade(waiter);
+            } else {
+                entry.enqueue(waiter);
+            }
+            switch (policy) {
+                case NO_WAIT:
+                    entry.unlink(waiter);
+                    throw Error.ConcurrentUpdateException;
+                case WAIT_DIE:
+                    if (!isOlderThanAll(xid, blockers(waiter))) {
+                        entry.unlink(waiter);
+                        throw Error.ConcurrentUpdateException;
+                    }
+                    break;
+                case WOUND_WAIT:
+                    wounded = wound(xid, blockers(waiter));
+                    break;
+                default:
             }
-            xid2waitThread.put(xid, Thread.currentThread());
-            LockSupport.park();
+            txn.waiting = waiter;
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
+        }
+
+        if (wounded != null) {
+            for (TxnLocks t : wounded) {
+                Waiter w = t.waiting;
+                if (w != null) {
+                    LockSupport.unpark(w.thread);
+                } else {
+                    woundHandler.accept(t.xid);
+                }
+            }
+        }
+        if (policy == WaitPolicy.DEADLOCK_DETECT && hasDeadLock(txn)) {
+            // 检测期间可能已经拿到
+            if (!cancel(shard, waiter)) {
+                throw Error.DeadlockException;
+            }
+            return;
+        }
+        await(shard, waiter);
+        // 获得锁的同时被伤害，此时没有在等待，伤害者不会回滚它，由它自己放弃
+        if (txn.wounded) {
+            throw Error.ConcurrentUpdateException;
         }
     }
 
     /**
-     * 在一个事务 commit 或者 rollback 时，就可以释放所有它持有的锁，并将自身从等待图中删除。
-     * @param xid
+     * 等待直到获得锁，超时或等待中被伤害时放弃
      */
-    public void remove(long xid) {
-        lock.lock();
-        try {
-            List<Long> x2u = xid2uids.get(xid);
-            if (x2u != null) {
-                while (!x2u.isEmpty()) {
-                    Long uid = x2u.remove(0);
-                    selectNewXid(uid);
+    private void await(Shard shard, Waiter waiter) throws Exception {
+        long deadline = System.nanoTime() + timeoutNanos;
+        while (!waiter.granted) {
+            if (waiter.txn.wounded) {
+                if (!cancel(shard, waiter)) {
+                    throw Error.ConcurrentUpdateException;
+                }
+                return;
+            }
+            if (timeoutNanos == 0) {
+                LockSupport.park(this);
+                continue;
+            }
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                if (!cancel(shard, waiter)) {
+                    throw Error.LockTimeoutException;
                 }
+                return;
             }
-            xid2waitUid.remove(xid);
-            xid2uids.remove(xid);
-            xid2waitThread.remove(xid);
+            LockSupport.parkNanos(this, remaining);
+        }
+    }
+
+    /**
+     * 放弃等待，从等待队列中移除，排在它后面、只被它阻塞的等待者此时可以获得锁
+     * @return 已经获得锁时返回true，此时不能放弃
+     */
+    private boolean cancel(Shard shard, Waiter waiter) {
+        List<Waiter> granted;
+        shard.lock.lock();
+        try {
+            if (waiter.granted) {
+                return true;
+            }
+            waiter.entry.unlink(waiter);
+            waiter.txn.waiting = null;
+            granted = grantWaiters(waiter.entry);
         } finally {
-            lock.unlock();
+            shard.lock.unlock();
         }
+        unpark(granted);
+        return false;
     }
 
     /**
-     * 从等待队列中选择一个xid来占用uid
-     * while循环释放掉了这个线程所有持有的资源的锁，这些资源可以被等待的线程所获取：
-     * 从 List开头开始尝试解锁，还是个公平锁。解锁时，将该 Lock 对象 unlock 即可，这样业务线程就获取到了锁，就可以继续执行了。
-     *
-     * @param uid
+     * 阻塞等待者的事务：与它不相容的其它持有者，以及排在它前面、与它不相容的等待者，调用方需持有分片锁
+     * 升级只等待持有者，不被排在前面的升级阻塞
      */
-    private void selectNewXid(Long uid) {
-        uid2xid.remove(uid);
-        List<Long> xids = uidWait2xids.get(uid);
-        if (xids == null || xids.isEmpty()) {
-            return;
+    private static List<TxnLocks> blockers(Waiter waiter) {
+        List<TxnLocks> blockers = new ArrayList<>();
+        for (Grant g = waiter.entry.holders; g != null; g = g.next) {
+            if (g.txn != waiter.txn && !g.mode.isCompatible(waiter.mode)) {
+                blockers.add(g.txn);
+            }
         }
-        while (!xids.isEmpty()) {
-            Long xid = xids.remove(0);
-            Thread thread;
-            if ((thread = xid2waitThread.remove(xid)) != null) {
-                uid2xid.put(uid, xid);
-                xid2waitUid.remove(xid);
-                LockSupport.unpark(thread);
-                break;
+        if (waiter.upgrade) {
+            return blockers;
+        }
+        for (Waiter w = waiter.entry.head; w != waiter; w = w.next) {
+            if (w.txn != waiter.txn && !w.mode.isCompatible(waiter.mode)) {
+                blockers.add(w.txn);
             }
         }
-        if (xids.isEmpty()) {
-            uidWait2xids.remove(uid);
+        return blockers;
+    }
+
+    private static boolean isOlderThanAll(long xid, List<TxnLocks> blockers) {
+        for (TxnLocks t : blockers) {
+            if (xid > t.xid) {
+                return false;
+            }
         }
+        return true;
     }
 
-    private Map<Long, Integer> xidStamp;
-    private int stamp;
+    /**
+     * 伤害比xid新的阻塞者
+     * @return 被伤害的事务，释放分片锁后唤醒其中正在等待的，回滚其余的
+     */
+    private static List<TxnLocks> wound(long xid, List<TxnLocks> blockers) {
+        List<TxnLocks> wounded = new ArrayList<>();
+        for (TxnLocks t : blockers) {
+            if (xid < t.xid && !t.wounded) {
+                t.wounded = true;
+                wounded.add(t);
+            }
+        }
+        return wounded;
+    }
 
-    private boolean hasDeadLock() {
-        Integer i;
-        xidStamp = new HashMap<>();
-        stamp = 1;
-        for (long xid : xid2uids.keySet()) {
-            if ((i = xidStamp.get(xid)) != null && i > 0) {
+    /**
+     * 从txn出发沿 等待者 -> 阻塞它的事务 -> 该事务的等待 搜索，回到txn则有死锁
+     * 每次只持有被检查的等待所在的分片锁；不经过txn的环由环上最后加入的事务负责
+     */
+    private boolean hasDeadLock(TxnLocks txn) {
+        Set<TxnLocks> visited = new HashSet<>();
+        ArrayDeque<TxnLocks> stack = new ArrayDeque<>();
+        stack.push(txn);
+        while (!stack.isEmpty()) {
+            TxnLocks t = stack.pop();
+            Waiter waiter = t.waiting;
+            if (waiter == null) {
                 continue;
             }
-            ++stamp;
-            if (dfs(xid)) {
-                return true;
+            List<TxnLocks> blockers;
+            Shard shard = shard(waiter.entry.uid);
+            shard.lock.lock();
+            try {
+                if (waiter.granted || t.waiting != waiter) {
+                    continue;
+                }
+                blockers = blockers(waiter);
+            } finally {
+                shard.lock.unlock();
+            }
+            for (TxnLocks b : blockers) {
+                if (b == txn) {
+                    return true;
+                }
+                if (visited.add(b)) {
+                    stack.push(b);
+                }
             }
         }
         return false;
     }
 
-    private boolean dfs(long xid) {
-        Integer stp = xidStamp.get(xid);
-        if (stp != null && stp == stamp) {
-            return true;
-        }
-        if (stp != null && stp < stamp) {
-            return false;
-        }
-        xidStamp.put(xid, stamp);
-
-        Long uid = xid2waitUid.get(xid);
-        if (uid == null) {
-            return false;
+    /**
+     * 在一个事务 commit 或者 rollback 时，就可以释放所有它持有的锁，并将自身从等待图中删除。
+     * @param xid
+     */
+    public void remove(long xid) {
+        TxnLocks txn = txns.remove(xid);
+        if (txn == null) {
+            return;
         }
-        Long x = uid2xid.get(uid);
-        if (x == null) {
-            return false;
+        for (long uid : txn.removeAll()) {
+            release(txn, uid);
         }
-        return dfs(x);
     }
 
-
-    private void removeFromList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> list = listMap.get(uid0);
-        if (list == null || list.isEmpty()) {
-            return;
-        }
-
-        Iterator<Long> iterator = list.iterator();
-        while (iterator.hasNext()) {
-            if (iterator.next().equals(uid1)) {
-                iterator.remove();
-                break;
+    /**
+     * 释放txn在uid上的锁，把锁授予可以获得它的等待者，没有持有者时删除该uid
+     */
+    private void release(TxnLocks txn, long uid) {
+        Shard shard = shard(uid);
+        List<Waiter> granted;
+        shard.lock.lock();
+        try {
+            LockEntry entry = shard.entries.get(uid);
+            entry.release(txn);
+            granted = grantWaiters(entry);
+            if (entry.holders == null) {
+                shard.entries.remove(uid);
             }
+        } finally {
+            shard.lock.unlock();
         }
-
-        if (list.isEmpty()) {
-            listMap.remove(uid0);
-        }
+        unpark(granted);
     }
 
-    private void putIntoList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> list = listMap.get(uid0);
-        if (list == null) {
-            listMap.put(uid0, (list = new LinkedList<>()));
+    /**
+     * 按队列顺序把锁授予与持有者相容、且与排在它前面仍在等待的等待者都相容的等待者，调用方需持有分片锁
+     * 升级只需与持有者相容。没有持有者时队首一定能获得锁，因此没有持有者的UID也没有等待者
+     * @return 获得锁的等待者，需要在释放分片锁后唤醒，没有时返回null
+     */
+    private static List<Waiter> grantWaiters(LockEntry entry) {
+        List<Waiter> granted = null;
+        Waiter w = entry.head;
+        while (w != null) {
+            Waiter next = w.next;
+            // 已被回滚的事务的等待者留在队列中，由它自己在发现被伤害后取消
+            if (w.txn.removed || !entry.isCompatible(w.txn, w.mode)
+                    || (!w.upgrade && entry.conflictsWithWaiters(w, w.txn, w.mode))
+                    || (!w.upgrade && !w.txn.hold(entry.uid))) {
+                w = next;
+                continue;
+            }
+            entry.unlink(w);
+            if (w.upgrade) {
+                entry.find(w.txn).mode = w.mode;
+            } else {
+                entry.holders = new Grant(w.txn, w.mode, entry.holders);
+            }
+            w.txn.waiting = null;
+            w.granted = true;
+            if (granted == null) {
+                granted = new ArrayList<>();
+            }
+            granted.add(w);
+            w = next;
         }
-        list.add(uid1);
+        return granted;
     }
 
-    private boolean isInList(Map<Long, List<Long>> listMap, long uid0, long uid1) {
-        List<Long> list = listMap.get(uid0);
-        if (list == null || list.isEmpty()) {
-            return false;
+    private static void unpark(List<Waiter> waiters) {
+        if (waiters == null) {
+            return;
         }
-
-        for (Long x : list) {
-            if (x.equals(uid1)) {
-                return true;
-            }
+        for (Waiter w : waiters) {
+            LockSupport.unpark(w.thread);
         }
-        return false;
     }
 }
@@ -0,0 +1,52 @@
+package com.mxp.mdb.backend.vm;
+
+import com.mxp.mdb.backend.tm.TransactionManager;
+
+import java.util.Arrays;
+
+/**
+ * 可重复读事务开始时的快照
+ * xmin 为快照时最小的活跃事务，更小的事务在快照时都已结束；
+ * xmax 为快照所属的事务，之后开始的事务都不在快照中；
+ * xip 为快照时其余的活跃事务，升序排列，判断时先比较上下界，再二分查找。
+ */
+public class Snapshot {
+
+    final long xmin;
+    final long xmax;
+    final long[] xip;
+
+    private Snapshot(long xmin, long xmax, long[] xip) {
+        this.xmin = xmin;
+        this.xmax = xmax;
+        this.xip = xip;
+    }
+
+    /**
+     * @param xid 快照所属的事务
+     * @param active 活跃事务，忽略超级事务
+     * @return
+     */
+    static Snapshot of(long xid, long[] active) {
+        long[] xip = new long[active.length];
+        int n = 0;
+        for (long x : active) {
+            if (x != TransactionManager.SUPER_XID && x < xid) {
+                xip[n++] = x;
+            }
+        }
+        xip = n == xip.length ? xip : Arrays.copyOf(xip, n);
+        Arrays.sort(xip);
+        return new Snapshot(n > 0 ? xip[0] : xid, xid, xip);
+    }
+
+    /**
+     * xid在快照时是否活跃
+     */
+    boolean contains(long xid) {
+        if (xid < xmin || xid >= xmax) {
+            return false;
+        }
+        return Arrays.binarySearch(xip, xid) >= 0;
+    }
+}
@@ -1,11 +1,8 @@
 package com.mxp.mdb.backend.vm;
 
+import com.mxp.mdb.backend.common.ConcurrentLongObjectMap;
 import com.mxp.mdb.backend.tm.TransactionManager;
 
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
-
 /**
  * vm对一个事务的抽象
  *
@@ -20,17 +17,16 @@ public class Transaction {
      * 隔离级别
      */
     public int level;
-    public Set<Long> snapshot;
+    public Snapshot snapshot;
     public Exception err;
     public boolean autoAborted;
 
-    public static Transaction newTransaction(long xid, int level, Map<Long, Transaction> active) {
+    public static Transaction newTransaction(long xid, int level, ConcurrentLongObjectMap<Transaction> active) {
         Transaction transaction = new Transaction();
         transaction.xid = xid;
         transaction.level = level;
         if (level != 0 && active != null) {
-            transaction.snapshot = new HashSet<>();
-            transaction.snapshot.addAll(active.keySet());
+            transaction.snapshot = Snapshot.of(xid, active.keys());
         }
         return transaction;
     }
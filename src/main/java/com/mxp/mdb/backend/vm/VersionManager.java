@@ -8,10 +8,39 @@ public interface VersionManager {
 
     byte[] read(long xid, long uid) throws Exception;
     long insert(long xid, byte[] data) throws Exception;
+
+    /**
+     * 插入不会有索引指向的版本，见 DataManager.insertUnindexed
+     */
+    long insertUnindexed(long xid, byte[] data) throws Exception;
     boolean delete(long xid, long uid) throws Exception;
 
+    /**
+     * 对可见的版本加锁，加锁后再次判断可见性，不可见的版本不加锁
+     * @return 加锁后仍可见时返回true；加锁前不可见，或等待期间被其它已提交的事务删除时返回false
+     */
+    boolean lock(long xid, long uid, LockMode mode) throws Exception;
+
     long begin(int level);
     void commit(long xid) throws Exception;
     void abort(long xid);
 
+    /**
+     * 清理时读取版本
+     * @param uid
+     * @param horizon
+     * @return 版本已对所有事务都不可见时返回其数据，否则返回null
+     */
+    byte[] readDead(long uid, long horizon) throws Exception;
+
+    /**
+     * 所有活跃事务都看得到 XID 小于它的已提交事务的修改，没有活跃事务时为 Long.MAX_VALUE
+     */
+    long vacuumHorizon();
+
+    /**
+     * 最大的活跃事务，没有时为0，之后开始的事务都比它大
+     */
+    long lastActive();
+
 }
@@ -1,17 +1,21 @@
 package com.mxp.mdb.backend.vm;
 
 import com.mxp.mdb.backend.common.AbstractCache;
+import com.mxp.mdb.backend.common.ConcurrentLongObjectMap;
 import com.mxp.mdb.backend.dm.DataManager;
 import com.mxp.mdb.backend.tm.TransactionManager;
 import com.mxp.mdb.backend.utils.Panic;
 import com.mxp.mdb.common.error.Error;
 
-import java.util.HashMap;
-import java.util.Map;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
 /**
+ * 活跃事务表是以XID为键的 ConcurrentLongObjectMap，读写和提交只查表，不加锁也不装箱
+ * 开启事务时加锁，保证分配XID、生成快照和登记事务对其它开启的事务是原子的，快照不会漏掉更小的活跃事务；
+ * 结束事务时先修改TM中的状态再从表中移除，快照中没有的更小事务一定已经结束。
+ * 清理计算界限时也加锁，不会漏掉正在开始、快照中还有已结束事务的事务
+ *
  * @author mxp
  * @date 2023/4/14 18:11
  */
@@ -20,17 +24,25 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     TransactionManager tm;
     DataManager dm;
     Lock lock;
-    Map<Long, Transaction> activeTransaction;
+    ConcurrentLongObjectMap<Transaction> activeTransaction;
     LockTable lockTable;
 
     public VersionManagerImpl(TransactionManager tm, DataManager dm) {
+        this(tm, dm, LockTable.WaitPolicy.DEADLOCK_DETECT, 0);
+    }
+
+    /**
+     * @param policy 删除时遇到其它事务持有的版本的处理策略，见 LockTable.WaitPolicy
+     * @param lockTimeoutMillis 等待的超时时间，0为不超时
+     */
+    public VersionManagerImpl(TransactionManager tm, DataManager dm, LockTable.WaitPolicy policy, long lockTimeoutMillis) {
         super(0);
         this.tm = tm;
         this.dm = dm;
-        activeTransaction = new HashMap<>();
+        activeTransaction = new ConcurrentLongObjectMap<>();
         activeTransaction.put(TransactionManager.SUPER_XID, Transaction.newTransaction(TransactionManager.SUPER_XID, 0, null));
         lock = new ReentrantLock();
-        lockTable = new LockTable();
+        lockTable = new LockTable(policy, lockTimeoutMillis, this::woundAbort);
     }
 
     /**
@@ -42,18 +54,21 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public byte[] read(long xid, long uid) throws Exception {
-        Transaction transaction;
-        lock.lock();
-        try {
-            transaction = activeTransaction.get(xid);
-        } finally {
-            lock.unlock();
-        }
+        Transaction transaction = activeTransaction.get(xid);
         if (transaction.err != null) {
             throw transaction.err;
         }
 
-        Entry entry = get(uid);
+        Entry entry;
+        try {
+            entry = get(uid);
+        } catch (Exception e) {
+            // 被撤销的插入，数据已被标记为非法
+            if (e == Error.NullEntryException) {
+                return null;
+            }
+            throw e;
+        }
         try {
             if (Visibility.isVisible(tm, transaction, entry)) {
                 return entry.data();
@@ -66,13 +81,7 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
 
     @Override
     public long insert(long xid, byte[] data) throws Exception {
-        Transaction transaction;
-        lock.lock();
-        try {
-            transaction = activeTransaction.get(xid);
-        } finally {
-            lock.unlock();
-        }
+        Transaction transaction = activeTransaction.get(xid);
 
         if (transaction.err != null) {
             throw transaction.err;
@@ -82,32 +91,50 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
     }
 
     @Override
-    public boolean delete(long xid, long uid) throws Exception {
-        Transaction transaction;
-        lock.lock();
-        try {
-            transaction = activeTransaction.get(xid);
-        } finally {
-            lock.unlock();
+    public long insertUnindexed(long xid, byte[] data) throws Exception {
+        Transaction transaction = activeTransaction.get(xid);
+
+        if (transaction.err != null) {
+            throw transaction.err;
         }
 
+        return dm.insertUnindexed(xid, Entry.wrapEntryRaw(xid, data));
+    }
+
+    @Override
+    public boolean delete(long xid, long uid) throws Exception {
+        return lock(xid, uid, LockMode.X, true);
+    }
+
+    @Override
+    public boolean lock(long xid, long uid, LockMode mode) throws Exception {
+        return lock(xid, uid, mode, false);
+    }
+
+    /**
+     * 对可见的版本加锁，delete为true时再将其删除
+     */
+    private boolean lock(long xid, long uid, LockMode mode, boolean delete) throws Exception {
+        Transaction transaction = activeTransaction.get(xid);
+
         if (transaction.err != null) {
             throw transaction.err;
         }
-        Entry entry = get(uid);
+        Entry entry;
+        try {
+            entry = get(uid);
+        } catch (Exception e) {
+            if (e == Error.NullEntryException) {
+                return false;
+            }
+            throw e;
+        }
         try {
             if (!Visibility.isVisible(tm, transaction, entry)) {
                 return false;
             }
 
-            try {
-                lockTable.add(xid, uid);
-            } catch (Exception e) {
-                transaction.err = Error.ConcurrentUpdateException;
-                internAbort(xid, true);
-                transaction.autoAborted = true;
-                throw transaction.err;
-            }
+            acquire(transaction, xid, uid, mode);
 
             if (entry.getXmax() == xid) {
                 return false;
@@ -116,16 +143,34 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
             if (Visibility.isVersionSkip(tm, transaction, entry)) {
                 transaction.err = Error.ConcurrentUpdateException;
                 internAbort(xid, true);
-                transaction.autoAborted = true;
                 throw transaction.err;
             }
-            entry.setXmax(xid);
+            // 等待期间持有者可能已提交删除，读已提交的事务此时看不到该版本
+            if (!Visibility.isVisible(tm, transaction, entry)) {
+                return false;
+            }
+            if (delete) {
+                entry.setXmax(xid);
+            }
             return true;
         } finally {
             entry.release();
         }
     }
 
+    /**
+     * 死锁、等待超时、按等待策略放弃或被更老的事务伤害，都自动回滚
+     */
+    private void acquire(Transaction transaction, long xid, long uid, LockMode mode) throws Exception {
+        try {
+            lockTable.add(xid, uid, mode);
+        } catch (Exception e) {
+            transaction.err = Error.ConcurrentUpdateException;
+            internAbort(xid, true);
+            throw transaction.err;
+        }
+    }
+
     /**
      * 开启一个事务，并初始化事务的结构，将其存放在 activeTransaction 中，用于检查和快照使用：
      * @param level
@@ -151,35 +196,84 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      */
     @Override
     public void commit(long xid) throws Exception {
-        Transaction transaction;
-        lock.lock();
-        try {
-            transaction = activeTransaction.get(xid);
-        } finally {
-            lock.unlock();
-        }
+        Transaction transaction = activeTransaction.get(xid);
 
         try {
-            if (transaction.err != null) {
-                throw transaction.err;
+            // 与伤害者的回滚互斥，被回滚的事务不能再提交
+            synchronized (transaction) {
+                if (transaction.err != null) {
+                    throw transaction.err;
+                }
+                tm.commit(xid);
             }
         } catch (NullPointerException e) {
             Panic.panic(e);
         }
 
+        activeTransaction.remove(xid);
+        lockTable.remove(xid);
+    }
+
+    @Override
+    public void abort(long xid) {
+        internAbort(xid, false);
+    }
+
+    @Override
+    public byte[] readDead(long uid, long horizon) throws Exception {
+        Entry entry;
+        try {
+            entry = get(uid);
+        } catch (Exception e) {
+            if (e == Error.NullEntryException) {
+                return null;
+            }
+            throw e;
+        }
+        try {
+            if (Visibility.isDead(tm, entry, horizon)) {
+                return entry.data();
+            }
+            return null;
+        } finally {
+            entry.release();
+        }
+    }
+
+    /**
+     * 读已提交的事务以自身为界，可重复读的事务以快照中最小的事务为界
+     */
+    @Override
+    public long vacuumHorizon() {
         lock.lock();
         try {
-            activeTransaction.remove(xid);
+            long horizon = Long.MAX_VALUE;
+            for (long xid : activeTransaction.keys()) {
+                Transaction transaction = activeTransaction.get(xid);
+                if (xid == TransactionManager.SUPER_XID || transaction == null) {
+                    continue;
+                }
+                long xmin = transaction.snapshot != null ? transaction.snapshot.xmin : transaction.xid;
+                horizon = Math.min(horizon, xmin);
+            }
+            return horizon;
         } finally {
             lock.unlock();
         }
-        lockTable.remove(xid);
-        tm.commit(xid);
     }
 
     @Override
-    public void abort(long xid) {
-        internAbort(xid, false);
+    public long lastActive() {
+        lock.lock();
+        try {
+            long last = 0;
+            for (long xid : activeTransaction.keys()) {
+                last = Math.max(last, xid);
+            }
+            return last;
+        } finally {
+            lock.unlock();
+        }
     }
 
     static VersionManager newVersionManager(TransactionManager tm, DataManager dm) {
@@ -210,21 +304,40 @@ public class VersionManagerImpl extends AbstractCache<Entry> implements VersionM
      * 自动则是在事务被检测出出现死锁时，会自动撤销回滚事务；或者出现版本跳跃时，也会自动回滚：
      */
     private void internAbort(long xid, boolean autoAbort) {
-        Transaction transaction;
-        lock.lock();
-        try {
-            transaction = activeTransaction.get(xid);
-            if (!autoAbort) {
-                activeTransaction.remove(xid);
+        Transaction transaction = activeTransaction.get(xid);
+        synchronized (transaction) {
+            // 自动回滚时已修改状态，只需从活跃事务表中移除
+            if (!transaction.autoAborted) {
+                tm.rollback(xid);
             }
-        } finally {
-            lock.unlock();
+            if (autoAbort) {
+                transaction.autoAborted = true;
+            }
+        }
+        if (!autoAbort) {
+            activeTransaction.remove(xid);
         }
+        // 被伤害者回滚时可能正在获取锁，再次释放它之后拿到的锁
+        lockTable.remove(xid);
+    }
 
-        if (transaction.autoAborted) {
+    /**
+     * WOUND_WAIT 下被更老的事务伤害、没有在等待锁的事务，在伤害者的线程中立即回滚并释放锁，
+     * 之后它的操作和提交都抛出 ConcurrentUpdateException，由客户端 abort
+     */
+    private void woundAbort(long xid) {
+        Transaction transaction = activeTransaction.get(xid);
+        if (transaction == null) {
             return;
         }
+        synchronized (transaction) {
+            if (transaction.autoAborted || !tm.isActive(xid)) {
+                return;
+            }
+            transaction.err = Error.ConcurrentUpdateException;
+            tm.rollback(xid);
+            transaction.autoAborted = true;
+        }
         lockTable.remove(xid);
-        tm.rollback(xid);
     }
 }
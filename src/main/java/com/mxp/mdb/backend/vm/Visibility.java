@@ -23,7 +23,22 @@ public class Visibility {
             return false;
         }
         long xmax = e.getXmax();
-        return tm.isCommitted(xmax) && (xmax > t.xid || t.isInSnapshot(t.xid));
+        return e.isXmaxCommitted(tm) && (xmax > t.xid || t.isInSnapshot(xmax));
+    }
+
+    /**
+     * 该版本是否已对所有事务都不可见：
+     * 创建它的事务已回滚，或删除它的事务已提交、提交已持久化且小于 horizon
+     * 提交未持久化时崩溃后删除会被撤销，版本必须保留，ASYNC 策略下被删除的版本因此不会被清理
+     * @param horizon 所有活跃事务快照中最小的事务，见 VersionManager.vacuumHorizon
+     */
+    public static boolean isDead(TransactionManager tm, Entry e, long horizon) {
+        long xmin = e.getXmin();
+        if (!e.isXminCommitted(tm) && tm.isRollback(xmin)) {
+            return true;
+        }
+        long xmax = e.getXmax();
+        return xmax != TransactionManager.SUPER_XID && xmax < horizon && e.isXmaxCommitted(tm) && tm.isDurable(xmax);
     }
 
     /**
@@ -66,12 +81,12 @@ public class Visibility {
             return true;
         }
 
-        if (tm.isCommitted(xmin) && xmin < xid && !t.isInSnapshot(xid)) {
+        if (e.isXminCommitted(tm) && xmin < xid && !t.isInSnapshot(xmin)) {
             if (xmax == 0) {
                 return true;
             }
 
-            if (xmax != xid && (!tm.isCommitted(xmax) || xmax > xid || t.isInSnapshot(xmax))) {
+            if (xmax != xid && (!e.isXmaxCommitted(tm) || xmax > xid || t.isInSnapshot(xmax))) {
                 return true;
             }
         }
@@ -100,14 +115,14 @@ public class Visibility {
         }
 
         // 创建该记录的事务已提交
-        if (tm.isCommitted(xmin)) {
+        if (e.isXminCommitted(tm)) {
             // 该纪录未被删除
             if (xmax == 0) {
                 return true;
             }
 
             // 该记录被删除，不是当前事务删除并且删除该记录的事务未提交
-            if (xmax != xid && !tm.isCommitted(xmax)) {
+            if (xmax != xid && !e.isXmaxCommitted(tm)) {
                 return true;
             }
         }
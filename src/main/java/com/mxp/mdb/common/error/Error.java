@@ -13,6 +13,7 @@ public class Error {
 
     // dm
     public static final Exception BadLogFileException = new RuntimeException("Bad log file!");
+    public static final Exception BadDataFileException = new RuntimeException("Bad data file!");
     public static final Exception MemTooSmallException = new RuntimeException("Memory too small!");
     public static final Exception DataTooLargeException = new RuntimeException("Data too large!");
     public static final Exception DatabaseBusyException = new RuntimeException("Database is busy!");
@@ -23,6 +24,7 @@ public class Error {
     // vm
     public static final Exception DeadlockException = new RuntimeException("Deadlock!");
     public static final Exception ConcurrentUpdateException = new RuntimeException("Concurrent update issue!");
+    public static final Exception LockTimeoutException = new RuntimeException("Lock wait timeout!");
     public static final Exception NullEntryException = new RuntimeException("Null entry!");
 
     // tbm